@@ -3,18 +3,22 @@ package client;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
 /**
  * Stores state about this client and connection to server.
  * Responsible for listening to server messages and for starting
@@ -25,13 +29,26 @@ public class Client {
 	
 	protected final int bufCapacity = 2048;
 
-	private InetSocketAddress address;
+	private SocketAddress address;
 	
 	/**
 	 * socket that will be opened with server
 	 */
 	protected SocketChannel socket;
 	
+	/**
+	 * Channel messages are read from and written to: the socket itself, or a
+	 * {@link TlsChannel} wrapping it.
+	 */
+	protected ByteChannel channel;
+	
+	/**
+	 * Set when the connection to the server uses TLS.
+	 */
+	private SSLContext sslContext;
+	
+	private TlsChannel tls;
+	
 	/**
 	 * Handler for listening to input from user.
 	 */
@@ -60,7 +77,16 @@ public class Client {
 	 * @param port Port number to connect to.
 	 */
 	public Client(InetAddress ipaddr, int port) {
-		address = new InetSocketAddress(ipaddr, port);
+		this(new InetSocketAddress(ipaddr, port));
+	}
+	
+	/**
+	 * Initializes the Client object for any server address, for example a
+	 * {@link UnixDomainSocketAddress} when the server runs on the same host.
+	 * @param address address of the server to connect to.
+	 */
+	public Client(SocketAddress address) {
+		this.address = address;
 		readBuf = ByteBuffer.allocate(bufCapacity);
 		writeBuf = ByteBuffer.allocate(bufCapacity);
 		toWrite = new ArrayDeque<>();
@@ -69,6 +95,16 @@ public class Client {
 		System.out.println("Initial counter: " + counter + "\n");
 	}
 	
+	/**
+	 * Makes the client connect to the server with TLS, must be called before {@link #start()}.
+	 * The server's certificate is checked against the trust store of the context and must
+	 * match the host name used to connect.
+	 * @param sslContext context holding the trusted certificates
+	 */
+	public void enableTls(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+	
 	/**
 	 * Starts the client by connecting to server and starting two threads.
 	 * Specifically, it follows these steps:<br>
@@ -80,10 +116,22 @@ public class Client {
 	public void start() {
 		try {
 			socket = SocketChannel.open(address);
+			channel = socket;
+			if (sslContext != null && address instanceof InetSocketAddress) {
+				InetSocketAddress inetAddress = (InetSocketAddress) address;
+				SSLEngine engine = sslContext.createSSLEngine(inetAddress.getHostString(), inetAddress.getPort());
+				engine.setUseClientMode(true);
+				SSLParameters params = engine.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS"); // check the host name too
+				engine.setSSLParameters(params);
+				tls = new TlsChannel(socket, engine);
+				tls.handshake(); // socket is still blocking here
+				channel = tls;
+			}
 		}
 		catch (IOException e) {
 			System.out.println(e.getMessage());
-			System.out.println("Check the IP address and port number you used.");
+			System.out.println("Check the server address you used.");
 			System.exit(0);
 		}
 		
@@ -117,12 +165,15 @@ public class Client {
 						}
 						
 						if (key.isReadable()) {
-							int bytesRead = read();
-							if (bytesRead == -1) {
-								key.cancel();
-								stop();
-							}
-							receiveMessage();
+							do {
+								int bytesRead = read();
+								if (bytesRead == -1) {
+									key.cancel();
+									stop();
+								}
+								receiveMessage();
+								// TLS may have decrypted more than fit in readBuf
+							} while (tls != null && tls.hasBufferedInput());
 						}
 					} catch(CancelledKeyException e) {
 						stop();
@@ -138,26 +189,28 @@ public class Client {
 	
 	private void receiveMessage() {
 		readBuf.flip(); // switch buffer from writing mode to reading mode
-		while (readBuf.remaining() > 0) {
+		while (readBuf.remaining() >= 12) { // timestamp and length
+			int frameStart = readBuf.position();
 			long ts = readBuf.getLong();
-			counter = Math.max(counter, ts) + 1;
 			int msgLength = readBuf.getInt(); // message length (in bytes)
-			byte[] bytes = Arrays.copyOfRange(readBuf.array(), readBuf.position(), 
-					readBuf.position() + msgLength); // get text part as bytes
-			String msg = new String(bytes);
+			if (readBuf.remaining() < msgLength) {
+				// rest of the message has not arrived yet
+				readBuf.position(frameStart);
+				break;
+			}
+			counter = Math.max(counter, ts) + 1;
+			byte[] bytes = new byte[msgLength];
+			readBuf.get(bytes); // get text part as bytes
+			String msg = new String(bytes, StandardCharsets.UTF_8);
 			System.out.printf("Sent at: %d, received at: %d\n", ts, counter);
 			System.out.println(msg + "\n"); 
-			if ((readBuf.position() + msgLength) > readBuf.limit())
-				readBuf.position(readBuf.limit()); // or break;
-			else
-				readBuf.position(readBuf.position() + msgLength);
 		}
-		readBuf.clear(); // make buffer ready for next channel read operation
+		readBuf.compact(); // keep a partial message, ready for next channel read operation
 	}
 	
 	private int read() {
 		try {
-			return socket.read(readBuf);
+			return channel.read(readBuf);
 		} catch (IOException e) {
 			return -1;
 		}
@@ -188,7 +241,7 @@ public class Client {
 		writeBuf.put(msgBytes); // buffer: [ts message]
 		writeBuf.flip(); // prepare buffer for channel write
 		try {
-			socket.write(writeBuf);
+			channel.write(writeBuf);
 			writeBuf.clear();
 			System.out.printf("Message sent to server at: %d\n\n", ts);
 		} catch(IOException e) {
@@ -252,6 +305,7 @@ class SendHeartBeat implements Runnable {
 	Client client;
 	Thread th;
 	SocketChannel socket;
+	ByteChannel channel;
 	ByteBuffer heartBeatBuf;
 	long sleepPeriod = 200; // milliseconds
 	
@@ -260,6 +314,7 @@ class SendHeartBeat implements Runnable {
 	public SendHeartBeat(Client client) {
 		this.client = client;
 		this.socket = client.socket;
+		this.channel = client.channel;
 		heartBeatBuf = ByteBuffer.allocate(client.bufCapacity);
 		heartbeats = new ArrayDeque<String>();
 	}
@@ -322,7 +377,7 @@ class SendHeartBeat implements Runnable {
 		heartBeatBuf.putInt(0); // length of message is 0 for heartbeats
 		heartBeatBuf.flip();
 		try {
-			socket.write(heartBeatBuf);
+			channel.write(heartBeatBuf);
 			heartBeatBuf.clear();
 		} catch(IOException e) {
 			heartBeatBuf.clear();
@@ -1,7 +1,14 @@
 package client;
 
 import java.net.InetAddress;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * Entry point for the client program.
@@ -16,13 +23,31 @@ public class Main {
 	 * creates a new Client object using these values.
 	 * 
 	 * @param args First value is IP address or host name, second value is port number.
+	 * Alternatively, a single value with the path of the server's Unix domain socket.
+	 * The flag -tls connects with TLS, trusting the certificates in the trust store given
+	 * by the standard javax.net.ssl.trustStore system property.
 	 */
 	public static void main(String[] args) {
 		InetAddress ipaddr;
 		int port;
+		List<String> positional = new ArrayList<>(Arrays.asList(args));
+		boolean tls = positional.remove("-tls");
+		args = positional.toArray(new String[0]);
+		if (args.length == 1) {
+			if (tls) {
+				// the server only offers TLS on its TCP port
+				System.out.println("TLS is not available over a Unix domain socket, connect with the server's IP address and port.");
+				return;
+			}
+			// server on the same host, connect through its Unix domain socket
+			Client client = new Client(UnixDomainSocketAddress.of(args[0]));
+			client.start();
+			return;
+		}
 		if (args.length != 2) {
 			System.out.print("Invalid arguments.\nExample Usage: ");
-			System.out.println("java client.Main <server IP address> <port number>");
+			System.out.println("java client.Main [-tls] <server IP address> <port number>");
+			System.out.println("or: java client.Main <server socket path>");
 			return;
 		}
 		try {
@@ -35,6 +60,14 @@ public class Main {
 			return;
 		}		
 		Client client = new Client(ipaddr, port);
+		if (tls) {
+			try {
+				client.enableTls(SSLContext.getDefault());
+			} catch (NoSuchAlgorithmException e) {
+				System.out.println("TLS is not available: " + e.getMessage());
+				return;
+			}
+		}
 		client.start();
 	}
 }
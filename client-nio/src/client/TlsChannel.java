@@ -0,0 +1,169 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Wraps the connection to the server in TLS. Reads and writes have the same meaning as on the
+ * plain {@link SocketChannel}, but see decrypted data. The handshake is done up front, while the
+ * socket is still blocking; after that the channel works in non-blocking mode. Methods are
+ * synchronized since the heartbeat thread writes to the same channel.
+ */
+class TlsChannel implements ByteChannel {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SocketChannel socket;
+	private SSLEngine engine;
+
+	/**
+	 * Encrypted bytes read from the socket but not yet unwrapped (write mode).
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Encrypted bytes not yet written to the socket (write mode).
+	 */
+	private ByteBuffer netOut;
+
+	/**
+	 * Decrypted bytes not yet read by the client (write mode).
+	 */
+	private ByteBuffer appIn;
+
+	private boolean inboundClosed = false;
+
+	public TlsChannel(SocketChannel socket, SSLEngine engine) {
+		this.socket = socket;
+		this.engine = engine;
+		netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * Runs the whole handshake. The socket must still be in blocking mode.
+	 */
+	public synchronized void handshake() throws IOException {
+		engine.beginHandshake();
+		while (isHandshaking()) {
+			if (!progress() && engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+				if (socket.read(netIn) == -1)
+					throw new SSLException("Connection closed during TLS handshake");
+			}
+		}
+		flush();
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		int n = drain(dst);
+		int bytesRead = socket.read(netIn);
+		// the server may still send handshake messages, e.g. session tickets
+		while (progress() || unwrap()) {
+			// unwrap as many records as we have
+		}
+		n += drain(dst);
+		if (n == 0 && (bytesRead == -1 || inboundClosed))
+			return -1;
+		return n;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		flush();
+		SSLEngineResult result = engine.wrap(src, netOut);
+		flush();
+		return result.bytesConsumed();
+	}
+
+	/**
+	 * @return true if decrypted data is left over that did not fit in the last read's buffer
+	 */
+	public synchronized boolean hasBufferedInput() {
+		return appIn.position() > 0;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return socket.isOpen();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		engine.closeOutbound();
+		try {
+			engine.wrap(EMPTY, netOut); // close_notify
+			flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private boolean isHandshaking() {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Does one step of a running handshake.
+	 * @return true if the step made progress
+	 */
+	private boolean progress() throws IOException {
+		switch (engine.getHandshakeStatus()) {
+		case NEED_TASK:
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null)
+				task.run();
+			return true;
+		case NEED_WRAP:
+			if (engine.isOutboundDone())
+				return false;
+			SSLEngineResult result = engine.wrap(EMPTY, netOut);
+			flush();
+			return result.bytesProduced() > 0;
+		case NEED_UNWRAP:
+		case NEED_UNWRAP_AGAIN:
+			return unwrap();
+		default:
+			return false;
+		}
+	}
+
+	private boolean unwrap() throws IOException {
+		if (inboundClosed)
+			return false;
+		netIn.flip();
+		SSLEngineResult result = engine.unwrap(netIn, appIn);
+		netIn.compact();
+		if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			inboundClosed = true;
+			return false;
+		}
+		return result.getStatus() == SSLEngineResult.Status.OK
+				&& (result.bytesConsumed() > 0 || result.bytesProduced() > 0);
+	}
+
+	private void flush() throws IOException {
+		netOut.flip();
+		socket.write(netOut);
+		netOut.compact();
+	}
+
+	private int drain(ByteBuffer dst) {
+		appIn.flip();
+		int n = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		return n;
+	}
+}
@@ -0,0 +1,31 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A simple pool of direct buffers of one size. Not thread safe, only the selector thread
+ * borrows and returns buffers.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free;
+	
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		free = new ArrayDeque<ByteBuffer>(maxPooled);
+	}
+	
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.pollFirst();
+		return buf != null ? buf : ByteBuffer.allocateDirect(bufferSize);
+	}
+	
+	public void release(ByteBuffer buf) {
+		buf.clear();
+		if (free.size() < maxPooled)
+			free.addFirst(buf);
+	}
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Per-connection state, kept as small as possible since most connections are idle.
+ * Buffers and the outgoing queue are only held while data is in flight.
+ *
+ * @author Karim Sonbol
+ *
+ */
+class Client {
+	volatile String username;
+	Connection connection;
+	long lastHeartBeat;
+	boolean closed = false;
+	
+	/**
+	 * Partially received frame, only held until the rest of the frame arrives.
+	 */
+	ByteBuffer inbound;
+	
+	/**
+	 * Partially written frame, only held until the socket accepts the rest of it.
+	 */
+	ByteBuffer outbound;
+	
+	/**
+	 * Messages waiting to be written, only allocated while there is a backlog.
+	 */
+	ArrayDeque<byte[]> outbox;
+	
+	/**
+	 * Rate limit buckets, only created once the user sends a message.
+	 */
+	TokenBucket messageBucket;
+	TokenBucket byteBucket;
+	
+	/**
+	 * Set while frames are being rejected by the rate limit, so the user is only notified once.
+	 */
+	boolean rateLimited;
+	
+	/**
+	 * TLS state, null for plaintext connections.
+	 */
+	TlsSession tls;
+	
+	public Client(Connection connection) {
+		this.connection = connection;
+		this.username = null;
+	}
+	
+	public void updateUsername(String username) {
+		this.username = username;
+	}
+	
+	public String getUsername() {
+		return username;
+	}
+	
+	public String getAddress() {
+		return connection.getAddress();
+	}
+	
+	public Connection getConnection() {
+		return connection;
+	}
+	
+	public long getLastHeartBeat() {
+		return lastHeartBeat;
+	}
+	
+	public void setLastHeartBeat(long time) {
+		lastHeartBeat = time;
+	}
+	
+	public boolean hasUsername() {
+		return username != null;
+	}
+	
+	public boolean inChatRoom() {
+		return hasUsername();
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	public void setClosed() {
+		closed = true;
+	}
+}
@@ -0,0 +1,43 @@
+package server;
+
+import java.nio.channels.ByteChannel;
+
+/**
+ * One client connection as seen by the server, independent of the {@link Transport}.
+ * Reads and writes never block, and like a {@link java.nio.channels.SelectionKey} the
+ * connection remembers whether the server currently wants to read or write, and carries
+ * the server's state for it as an attachment.
+ * <p>
+ * Setting the interest may be done from any thread, calling it on a closed connection has no effect.
+ */
+public interface Connection extends ByteChannel {
+
+	void setReading(boolean reading);
+
+	/**
+	 * @return true if the connection is watched for reading, false if it is paused or closed
+	 */
+	boolean isReading();
+
+	void setWriting(boolean writing);
+
+	/**
+	 * @return true if the connection is watched for writing, false if it is not or is closed
+	 */
+	boolean isWriting();
+
+	void attach(Object attachment);
+
+	Object attachment();
+
+	/**
+	 * @return address of the peer, for logging
+	 */
+	String getAddress();
+
+	/**
+	 * @return true if the peer is on the same host and skips the network, such as a
+	 * Unix domain socket client. TLS is not used for these.
+	 */
+	boolean isLocal();
+}
@@ -0,0 +1,70 @@
+package server;
+
+/**
+ * Closes clients that stopped sending heartbeats, on its own thread or one sweep at a time.
+ *
+ * @author Karim Sonbol
+ *
+ */
+class HeartBeatManager implements Runnable {
+	
+	private Server server;
+	private TimeSource timeSource;
+	private int hbFactor = 4;
+	private long hbPeriod = 200;
+	
+	public HeartBeatManager(Server server, TimeSource timeSource) {
+		this.server = server;
+		this.timeSource = timeSource;
+	}
+	
+	public void start() {
+		Thread th = new Thread(this);
+		th.start();
+	}
+	
+	public void run() {
+		while (true) {
+			sweep(timeSource.millis());
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Closes every client that has not sent a heartbeat for hbFactor periods.
+	 * 
+	 * @param now current time in milliseconds
+	 */
+	public void sweep(long now) {
+		long last;
+		for (Client client: server.connections) {
+			last = client.getLastHeartBeat();
+			if ((now - last) > (hbFactor * hbPeriod)) {
+				closeClient(client);
+			}
+		}
+	}
+	
+	public void initializeHeartBeat(Client client) {
+		if (client.isClosed())
+			return;
+		long now = timeSource.millis();
+		client.setLastHeartBeat(now);
+	}
+	
+	public void addHeartBeat(Client client) {
+		if (client.isClosed())
+			return; // ignore if it is a message from a closed client
+		long now = timeSource.millis(); // in milliseconds
+		client.setLastHeartBeat(now);
+	}
+	
+	public void closeClient(Client client) {
+		server.close(client);
+		if (client.getUsername() != null)
+			server.announcePresence(client.getUsername(), false);
+	}
+}
@@ -9,9 +9,17 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import javax.net.ssl.SSLContext;
+
 /**
  * Entry point for the server program.
  * 
@@ -27,14 +35,31 @@ public class Main {
 	 * {@link Server#newConnection(Socket)} method.
 	 * 
 	 * @param args an optional argument for the port number. If not given, defaults to port 4444.
+	 * A second optional argument is the path of a Unix domain socket to also listen on.
+	 * The flag -tls makes TCP clients use TLS, with the key store given by the standard
+	 * javax.net.ssl.keyStore and javax.net.ssl.keyStorePassword system properties.
 	 */
 	public static void main(String[] args) throws IOException {
 		int port = 4444;
-		if (args.length > 0) {
-			port = Integer.parseInt(args[0]);
+		Path socketPath = null;
+		List<String> positional = new ArrayList<>(Arrays.asList(args));
+		boolean tls = positional.remove("-tls");
+		if (positional.size() > 0) {
+			port = Integer.parseInt(positional.get(0));
+		}
+		if (positional.size() > 1) {
+			socketPath = Paths.get(positional.get(1));
 		}
 		
-		Server server = new Server(port);
+		Server server = new Server(port, socketPath);
+		if (tls) {
+			try {
+				server.enableTls(SSLContext.getDefault());
+			} catch (NoSuchAlgorithmException e) {
+				System.out.println("TLS is not available: " + e.getMessage());
+				return;
+			}
+		}
 		server.start();
 	}
 }
@@ -0,0 +1,116 @@
+package server;
+
+/**
+ * A message travelling through the inbound {@link Pipeline}. Message objects are reused:
+ * the selector thread keeps one for all frames it handles inline, and messages handed to
+ * worker threads come from a small pool. Handlers must not keep a reference to a message
+ * after returning from {@link MessageHandler#handle(Message)}.
+ */
+public class Message {
+
+	/**
+	 * Connection the frame was received from.
+	 */
+	Client sender;
+
+	/**
+	 * Lamport timestamp of the frame.
+	 */
+	long timestamp;
+
+	/**
+	 * Raw frame payload, only the first length bytes are valid.
+	 */
+	final byte[] payload;
+	int length;
+
+	/**
+	 * Text of the message, set by the decode stage.
+	 */
+	String text;
+
+	/**
+	 * Text that will be sent out, set by the route stage.
+	 */
+	String outText;
+
+	/**
+	 * Username of the single recipient of outText, or null to send it to everyone in the chat room.
+	 */
+	String recipient;
+
+	Message(int capacity) {
+		payload = new byte[capacity];
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Replaces the text of the message, for example to filter or rewrite it.
+	 */
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @return username of the sender, or null if it has not chosen one yet
+	 */
+	public String getSenderUsername() {
+		return sender.getUsername();
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the text that will be sent out, null until the route stage has run
+	 */
+	public String getOutText() {
+		return outText;
+	}
+
+	/**
+	 * Sets the text that will be sent out, for stages that route messages themselves.
+	 */
+	public void setOutText(String outText) {
+		this.outText = outText;
+	}
+
+	/**
+	 * @return username of the single recipient, or null if the message goes to the whole chat room
+	 */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	/**
+	 * Sends the message to one user instead of the whole chat room. If that user is gone
+	 * by the time the message is encoded, it is dropped.
+	 *
+	 * @param username the recipient, or null to send to the whole chat room
+	 */
+	public void setRecipient(String username) {
+		this.recipient = username;
+	}
+
+	void clear() {
+		sender = null;
+		recipient = null;
+		text = null;
+		outText = null;
+		length = 0;
+	}
+
+	void copyFrom(Message other) {
+		sender = other.sender;
+		timestamp = other.timestamp;
+		System.arraycopy(other.payload, 0, payload, 0, other.length);
+		length = other.length;
+		text = other.text;
+		outText = other.outText;
+		recipient = other.recipient;
+	}
+}
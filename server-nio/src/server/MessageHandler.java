@@ -0,0 +1,26 @@
+package server;
+
+/**
+ * One stage of the inbound {@link Pipeline}.
+ */
+public interface MessageHandler {
+
+	/**
+	 * Handles a message. The message may be changed in place for the following stages.
+	 *
+	 * @param message the message, only valid until this method returns
+	 * @return true to pass the message on to the next stage, false if it was consumed
+	 */
+	boolean handle(Message message);
+
+	/**
+	 * CPU heavy stages can return true to run on a worker thread instead of the selector thread.
+	 * This stage and every stage after it then run on the worker chosen for the sender. Messages
+	 * that arrive while earlier ones of the same worker are still queued run all their stages
+	 * on it, so messages of one connection pass each stage in order. Every stage may therefore
+	 * run on a worker and must be thread safe, as the built-in stages are.
+	 */
+	default boolean runsOnWorker() {
+		return false;
+	}
+}
@@ -0,0 +1,243 @@
+package server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Real sockets: a TCP port and optionally a Unix domain socket, served by one {@link Selector}.
+ */
+public class NioTransport implements Transport {
+
+	/**
+	 * Pending connections the OS may queue between two selects, large enough for reconnect storms.
+	 */
+	private final int acceptBacklog = 1024;
+
+	private int port;
+
+	/**
+	 * Path of the Unix domain socket for clients on the same host, null if only TCP is used.
+	 */
+	private Path socketPath;
+
+	/**
+	 * Null until {@link #open()}, read by other threads in {@link #wakeup()}.
+	 */
+	private volatile Selector selector;
+
+	/**
+	 * @param port TCP port to listen on
+	 * @param socketPath path of the Unix domain socket, or null to only listen on TCP
+	 */
+	public NioTransport(int port, Path socketPath) {
+		this.port = port;
+		this.socketPath = socketPath;
+	}
+
+	public void open() throws IOException {
+		if (socketPath != null)
+			removeStaleSocket(); // before binding anything, so a refused start leaves nothing open
+		selector = Selector.open();
+		ServerSocketChannel serverSocket = ServerSocketChannel.open();
+		serverSocket.bind(new InetSocketAddress(port), acceptBacklog);
+		serverSocket.configureBlocking(false);
+		serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Listening on port " + port + "\n");
+		if (socketPath != null) {
+			ServerSocketChannel localSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			localSocket.bind(UnixDomainSocketAddress.of(socketPath), acceptBacklog);
+			socketPath.toFile().deleteOnExit();
+			localSocket.configureBlocking(false);
+			localSocket.register(selector, SelectionKey.OP_ACCEPT);
+			System.out.println("Listening on " + socketPath + "\n");
+		}
+	}
+
+	/**
+	 * Removes the socket file left behind by an earlier run. Fails instead if another server is
+	 * still listening on it, or if something other than a socket is at the path.
+	 */
+	private void removeStaleSocket() throws IOException {
+		if (!Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS))
+			return;
+		if (!isSocket(socketPath))
+			throw new IOException(socketPath + " already exists and is not a socket");
+		try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			probe.connect(UnixDomainSocketAddress.of(socketPath));
+			throw new IOException("Another server is already listening on " + socketPath);
+		} catch (ConnectException e) {
+			// nobody is listening, the socket is stale
+		}
+		Files.delete(socketPath);
+	}
+
+	private static boolean isSocket(Path path) throws IOException {
+		try {
+			int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+			return (mode & 0170000) == 0140000; // S_IFSOCK
+		} catch (UnsupportedOperationException e) {
+			// no unix attributes (Windows), a socket is neither a file, a directory nor a link there
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+		}
+	}
+
+	public void poll(long timeout, Events events) throws IOException {
+		selector.select(timeout);
+		Set<SelectionKey> selectedKeys = selector.selectedKeys();
+		Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+		while(iter.hasNext()) {
+			SelectionKey key = iter.next();
+
+			try {
+				if (key.isAcceptable())
+					acceptConnections((ServerSocketChannel) key.channel(), events);
+
+				if (key.isWritable())
+					events.writable((Connection) key.attachment());
+
+				if (key.isReadable())
+					events.readable((Connection) key.attachment());
+			} catch(CancelledKeyException e) {
+
+			} finally {
+			iter.remove();
+			}
+		}
+	}
+
+	public void wakeup() {
+		if (selector != null) // nothing is waiting before open
+			selector.wakeup();
+	}
+
+	private void acceptConnections(ServerSocketChannel serverSocket, Events events) {
+		// drain the whole accept backlog, not just one connection per select
+		while (true) {
+			try {
+				SocketChannel socket = serverSocket.accept();
+				if (socket == null)
+					return;
+				socket.configureBlocking(false);
+				NioConnection connection = new NioConnection(socket);
+				// only watch for OP_WRITE while there is something queued
+				connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+				events.accepted(connection);
+			} catch (IOException e) {
+				// client failed suddenly?
+				return;
+			}
+		}
+	}
+}
+
+
+/**
+ * A socket registered with the transport's selector.
+ */
+class NioConnection implements Connection {
+	SocketChannel channel;
+	SelectionKey key;
+	Object attachment;
+
+	public NioConnection(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		return channel.read(dst);
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// if the channel is already closed, manually cancel its SelectionKey, not sure if this is needed
+			key.cancel();
+		}
+	}
+
+	public void setReading(boolean reading) {
+		setInterest(SelectionKey.OP_READ, reading);
+	}
+
+	public boolean isReading() {
+		return hasInterest(SelectionKey.OP_READ);
+	}
+
+	public void setWriting(boolean writing) {
+		setInterest(SelectionKey.OP_WRITE, writing);
+	}
+
+	public boolean isWriting() {
+		return hasInterest(SelectionKey.OP_WRITE);
+	}
+
+	private void setInterest(int op, boolean on) {
+		try {
+			key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+		} catch (CancelledKeyException e) {
+			// connection is being closed
+		}
+	}
+
+	private boolean hasInterest(int op) {
+		try {
+			return (key.interestOps() & op) != 0;
+		} catch (CancelledKeyException e) {
+			return false;
+		}
+	}
+
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	public Object attachment() {
+		return attachment;
+	}
+
+	/**
+	 * The remote address is looked up on demand instead of being stored per connection.
+	 */
+	public String getAddress() {
+		try {
+			String address = String.valueOf(channel.getRemoteAddress());
+			// clients of the Unix domain socket have no address of their own
+			return address.isEmpty() ? "local client " + System.identityHashCode(this) : address;
+		} catch (IOException e) {
+			return "closed connection";
+		}
+	}
+
+	public boolean isLocal() {
+		try {
+			return !(channel.getRemoteAddress() instanceof InetSocketAddress);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
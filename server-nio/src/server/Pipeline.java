@@ -0,0 +1,254 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An ordered list of named {@link MessageHandler} stages that every received chat message
+ * passes through. The server sets up the stages "decode", "session", "command", "filter",
+ * "route" and "encode", new stages can be inserted relative to them by name.
+ * <p>
+ * Stages run on the selector thread with a single reused {@link Message}. When a message
+ * reaches a stage that {@link MessageHandler#runsOnWorker() runs on a worker}, it is copied
+ * into a pooled message and the rest of the pipeline runs on one of the worker threads.
+ * Workers are picked per connection. While a worker still has messages of its connections,
+ * their next messages go to it from the first stage, so the messages of a connection pass
+ * every stage in order. Each worker takes a limited number of messages, the server stops
+ * reading from a connection whose worker is full, see {@link #canAccept(Client)}.
+ */
+public class Pipeline {
+
+	private volatile String[] names;
+	private volatile MessageHandler[] handlers;
+
+	/**
+	 * Single threaded executors, one per stripe of connections. Created with the first worker stage.
+	 */
+	private volatile ExecutorService[] workers;
+	private final int workerCount;
+
+	/**
+	 * Messages handed to each worker and not finished yet, at most maxInFlight.
+	 */
+	private AtomicIntegerArray inFlight;
+	private final int maxInFlight = 64;
+
+	/**
+	 * Message used for all stages that run on the selector thread.
+	 */
+	private final Message inline;
+
+	/**
+	 * Pool of hand-offs to worker threads, shared by the selector and worker threads. It holds
+	 * as many as can be in flight, so once warmed up handing off does not allocate.
+	 */
+	private final ArrayDeque<Handoff> free;
+	private final int maxPooled;
+	private final int capacity;
+
+	/**
+	 * @param capacity size of the largest message payload in bytes
+	 * @param workerCount number of worker threads for stages that run off the selector thread
+	 */
+	public Pipeline(int capacity, int workerCount) {
+		this.capacity = capacity;
+		this.workerCount = workerCount;
+		maxPooled = workerCount * maxInFlight;
+		names = new String[0];
+		handlers = new MessageHandler[0];
+		inline = new Message(capacity);
+		free = new ArrayDeque<Handoff>();
+	}
+
+	/**
+	 * Adds a stage at the end of the pipeline.
+	 */
+	public synchronized void addLast(String name, MessageHandler handler) {
+		insert(handlers.length, name, handler);
+	}
+
+	/**
+	 * Adds a stage just before the stage called baseName.
+	 */
+	public synchronized void addBefore(String baseName, String name, MessageHandler handler) {
+		insert(indexOf(baseName), name, handler);
+	}
+
+	/**
+	 * Adds a stage just after the stage called baseName.
+	 */
+	public synchronized void addAfter(String baseName, String name, MessageHandler handler) {
+		insert(indexOf(baseName) + 1, name, handler);
+	}
+
+	/**
+	 * Removes the stage called name.
+	 */
+	public synchronized void remove(String name) {
+		int index = indexOf(name);
+		String[] newNames = new String[names.length - 1];
+		MessageHandler[] newHandlers = new MessageHandler[handlers.length - 1];
+		System.arraycopy(names, 0, newNames, 0, index);
+		System.arraycopy(names, index + 1, newNames, index, names.length - index - 1);
+		System.arraycopy(handlers, 0, newHandlers, 0, index);
+		System.arraycopy(handlers, index + 1, newHandlers, index, handlers.length - index - 1);
+		handlers = newHandlers;
+		names = newNames;
+	}
+
+	/**
+	 * @return the stage called name, or null if there is none
+	 */
+	public synchronized MessageHandler get(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return handlers[i];
+		}
+		return null;
+	}
+
+	private int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("No pipeline stage named " + name);
+	}
+
+	private void insert(int index, String name, MessageHandler handler) {
+		if (get(name) != null)
+			throw new IllegalArgumentException("Duplicate pipeline stage " + name);
+		String[] newNames = new String[names.length + 1];
+		MessageHandler[] newHandlers = new MessageHandler[handlers.length + 1];
+		System.arraycopy(names, 0, newNames, 0, index);
+		System.arraycopy(names, index, newNames, index + 1, names.length - index);
+		System.arraycopy(handlers, 0, newHandlers, 0, index);
+		System.arraycopy(handlers, index, newHandlers, index + 1, handlers.length - index);
+		newNames[index] = name;
+		newHandlers[index] = handler;
+		if (handler.runsOnWorker() && workers == null) {
+			inFlight = new AtomicIntegerArray(workerCount);
+			ExecutorService[] newWorkers = new ExecutorService[workerCount];
+			for (int i = 0; i < workerCount; i++) {
+				// canAccept keeps the queue below its bound, a full queue would throw
+				newWorkers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(maxInFlight));
+			}
+			workers = newWorkers;
+		}
+		handlers = newHandlers;
+		names = newNames;
+	}
+
+	/**
+	 * @return the message to fill in for the next frame, only for use on the selector thread
+	 */
+	Message message() {
+		inline.clear();
+		return inline;
+	}
+
+	/**
+	 * @return false if the worker of the sender's connection is full, the server then stops
+	 * reading from the connection until it is not. Always true without worker stages.
+	 */
+	boolean canAccept(Client sender) {
+		if (workers == null)
+			return true;
+		return inFlight.get(stripe(sender)) < maxInFlight;
+	}
+
+	/**
+	 * Passes a message through all stages, starting on the calling (selector) thread.
+	 * Only called if {@link #canAccept(Client)} allows it.
+	 */
+	void fire(Message message) {
+		MessageHandler[] stages = handlers;
+		if (workers != null && inFlight.get(stripe(message.sender)) > 0) {
+			// earlier messages may still be on the worker, the inline stages must not overtake them
+			handOff(message, stages, 0);
+			return;
+		}
+		run(message, stages, 0, false);
+	}
+
+	private void run(Message message, MessageHandler[] stages, int from, boolean onWorker) {
+		for (int i = from; i < stages.length; i++) {
+			MessageHandler handler = stages[i];
+			if (!onWorker && handler.runsOnWorker()) {
+				handOff(message, stages, i);
+				return;
+			}
+			if (!handler.handle(message))
+				return;
+		}
+	}
+
+	private void handOff(Message message, MessageHandler[] stages, int next) {
+		Handoff handoff = obtain();
+		handoff.message.copyFrom(message);
+		handoff.stages = stages;
+		handoff.next = next;
+		handoff.stripe = stripe(message.sender);
+		inFlight.incrementAndGet(handoff.stripe);
+		workers[handoff.stripe].execute(handoff);
+	}
+
+	private int stripe(Client sender) {
+		return (System.identityHashCode(sender) & 0x7fffffff) % workers.length;
+	}
+
+	private Handoff obtain() {
+		synchronized (free) {
+			Handoff handoff = free.poll();
+			if (handoff != null)
+				return handoff;
+		}
+		return new Handoff(capacity);
+	}
+
+	private void recycle(Handoff handoff) {
+		handoff.message.clear();
+		handoff.stages = null;
+		synchronized (free) {
+			if (free.size() < maxPooled)
+				free.push(handoff);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Pipeline" + Arrays.toString(names);
+	}
+
+	/**
+	 * A message on its way to a worker thread, along with where to continue in the pipeline.
+	 * Pooled together with its message, so handing off does not allocate either.
+	 */
+	private class Handoff implements Runnable {
+		final Message message;
+		MessageHandler[] stages;
+		int next;
+		int stripe;
+
+		Handoff(int capacity) {
+			message = new Message(capacity);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Pipeline.this.run(message, stages, next, true);
+			} finally {
+				int done = stripe;
+				recycle(this);
+				inFlight.decrementAndGet(done);
+			}
+		}
+	}
+}
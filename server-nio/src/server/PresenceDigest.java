@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * When to replace the "X has joined" and "X has left" notices with a periodic digest.
+ * In a small room every join and leave is announced on its own. Once the room has at least
+ * {@link #getThreshold()} users, joins and leaves are only counted, and every
+ * {@link #getPeriod()} milliseconds one digest such as "42 joined, 17 left the chat!"
+ * goes to the room. A reconnect storm of N users then costs the room a few frames per
+ * period instead of N notices for each of the N users.
+ * <p>
+ * Set with {@link Server#setPresenceDigest(PresenceDigest)}, takes effect on the next join or leave.
+ */
+public class PresenceDigest {
+
+	private final int threshold;
+	private final long period;
+
+	/**
+	 * @param threshold room size from which joins and leaves are only sent as digests
+	 * @param period time between digests in milliseconds
+	 */
+	public PresenceDigest(int threshold, long period) {
+		if (threshold < 0 || period <= 0)
+			throw new IllegalArgumentException("Threshold must not be negative and period must be positive");
+		this.threshold = threshold;
+		this.period = period;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return true if a join or leave in a room of roomSize users goes into the digest
+	 */
+	boolean isDigested(int roomSize) {
+		return roomSize >= threshold;
+	}
+
+	/**
+	 * @return the digest text for the given counts
+	 */
+	static String format(int joined, int left) {
+		return joined + " joined, " + left + " left the chat!";
+	}
+}
@@ -0,0 +1,93 @@
+package server;
+
+/**
+ * Limits on how fast a single user may send messages into the chat room.
+ * Each connection gets two token buckets, one counting messages and one counting bytes,
+ * which are checked whenever a complete frame has been decoded. Heartbeats are not limited.
+ * <p>
+ * A limit can be swapped at any time with {@link Server#setRateLimit(RateLimit)}, buckets
+ * always read the current limit so new rates apply immediately.
+ */
+public class RateLimit {
+
+	/**
+	 * What the server does with a frame that is over the limit.
+	 */
+	public enum Action {
+		/**
+		 * Drop the frame and tell the sender its message was not delivered.
+		 */
+		REJECT,
+		/**
+		 * Stop reading from the connection (clear OP_READ) until enough tokens are available,
+		 * so the sender is slowed down by TCP flow control. Heartbeats queue up behind the
+		 * paused frame, so a paused connection counts as alive until it is resumed.
+		 */
+		PAUSE
+	}
+
+	private final double messagesPerNano;
+	private final double messageBurst;
+	private final double bytesPerNano;
+	private final double byteBurst;
+	private final Action action;
+
+	/**
+	 * @param messagesPerSecond sustained message rate
+	 * @param messageBurst number of messages that may be sent back to back
+	 * @param bytesPerSecond sustained rate of message bytes
+	 * @param byteBurst number of bytes that may be sent back to back, at least one full frame
+	 * @param action what to do with frames over the limit
+	 */
+	public RateLimit(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst,
+			Action action) {
+		if (messagesPerSecond <= 0 || bytesPerSecond <= 0 || messageBurst < 1 || byteBurst < 1)
+			throw new IllegalArgumentException("Rates and burst sizes must be positive");
+		this.messagesPerNano = messagesPerSecond / 1e9;
+		this.messageBurst = messageBurst;
+		this.bytesPerNano = bytesPerSecond / 1e9;
+		this.byteBurst = byteBurst;
+		this.action = action;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * Takes one message and msgLength bytes from the client's buckets if both have enough tokens.
+	 *
+	 * @param client sender of the frame
+	 * @param msgLength size of the message in bytes
+	 * @param now current time from the server's {@link TimeSource#nanos()}, which is a
+	 * {@link VirtualClock} in simulations
+	 * @return true if the frame is within the limit
+	 */
+	boolean tryAcquire(Client client, int msgLength, long now) {
+		if (client.messageBucket == null) {
+			client.messageBucket = new TokenBucket(messageBurst, now);
+			client.byteBucket = new TokenBucket(byteBurst, now);
+		}
+		client.messageBucket.refill(messagesPerNano, messageBurst, now);
+		client.byteBucket.refill(bytesPerNano, byteBurst, now);
+		// a frame bigger than the burst could never pass, charge it a full bucket instead
+		double cost = Math.min(msgLength, byteBurst);
+		if (client.messageBucket.tokens < 1 || client.byteBucket.tokens < cost)
+			return false;
+		client.messageBucket.tokens -= 1;
+		client.byteBucket.tokens -= cost;
+		return true;
+	}
+
+	/**
+	 * Checks, without taking anything, if a frame of msgLength bytes would now be accepted.
+	 */
+	boolean canAcquire(Client client, int msgLength, long now) {
+		if (client.messageBucket == null)
+			return true;
+		client.messageBucket.refill(messagesPerNano, messageBurst, now);
+		client.byteBucket.refill(bytesPerNano, byteBurst, now);
+		return client.messageBucket.tokens >= 1
+				&& client.byteBucket.tokens >= Math.min(msgLength, byteBurst);
+	}
+}
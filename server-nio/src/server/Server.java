@@ -1,23 +1,19 @@
 package server;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 /**
  * Keeps the state of the server: active connected clients and a local counter.
@@ -27,17 +23,44 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Server {
 	/**
-	 * Keeps the list of all connections as a map of web address strings to to Client objects
+	 * Keeps the set of all connections. Each client is also attached to its {@link Connection},
+	 * so no per-connection lookup key is needed.
 	 */	
-	protected ConcurrentHashMap<String,Client> connections;
+	protected Set<Client> connections;
 	
-	/**/
-	private HashSet<String> usernames;
-	private Selector selector;
+	/**
+	 * Users of the chat room by username, also changed by the heartbeat thread when it closes clients.
+	 */
+	private ConcurrentHashMap<String,Client> usernames;
+	private Transport transport;
 	private HeartBeatManager heartBeatManager;
-	private volatile HashMap<String,ArrayDeque<String>> toWrite;
+	
+	/**
+	 * Clock for heartbeats and rate limits, a {@link VirtualClock} in simulations.
+	 */
+	private TimeSource timeSource;
+	
+	/**
+	 * Receives the transport's events, kept out of the public API of the server.
+	 */
+	private Transport.Events events;
 
 	private final int bufCapacity = 2048;
+	
+	/**
+	 * Size of the frame header: timestamp (long) followed by message length (int).
+	 */
+	private final int headerSize = 12;
+	
+	/**
+	 * Largest message payload that fits in a frame buffer, here and in the client.
+	 */
+	private final int maxPayload = bufCapacity - headerSize;
+	
+	/**
+	 * Longest username in characters, also keeps the join notice well below maxPayload.
+	 */
+	private final int maxUsernameLength = 32;
 	private final String usernameReq = "Choose a unique username to enter the chat room: ";
 	private final String welcomeMsg = ""
 			+ "**************************************************\n"
@@ -49,11 +72,72 @@ public class Server {
 	 */
 	protected volatile long counter;
 	
-	private int port;
+	/**
+	 * Prints connections and every message with its timestamps, see {@link #setLogging(boolean)}.
+	 */
+	private volatile boolean logging = true;
+	
+	/**
+	 * Read and write buffers are borrowed from this pool only while data is in flight,
+	 * so idle connections hold no buffers. Only used from the selector thread.
+	 */
+	private BufferPool bufferPool;
+	
+	/**
+	 * Per-user limit on messages and bytes per second, null to disable rate limiting.
+	 */
+	private volatile RateLimit rateLimit;
+	
+	/**
+	 * Connections whose reads are paused by the rate limit or a full pipeline worker.
+	 * Only used from the selector thread.
+	 */
+	private ArrayDeque<Client> paused;
+	
+	/**
+	 * How often paused connections are checked for resuming, in milliseconds.
+	 */
+	private final long resumeCheckPeriod = 20;
+	
+	private final String rateLimitedMsg = "You are sending messages too fast, your message was not delivered.";
+	
+	/**
+	 * When joins and leaves are batched into digests, null to always announce them one by one.
+	 */
+	private volatile PresenceDigest presenceDigest;
 	
-	private ByteBuffer readBuf;
+	/**
+	 * Joins and leaves since the last digest, counted by the selector and heartbeat threads.
+	 */
+	private AtomicInteger joinedCount;
+	private AtomicInteger leftCount;
 	
-	private ByteBuffer writeBuf;
+	/**
+	 * Time of the last digest in milliseconds. Only used from the selector thread.
+	 */
+	private long lastDigest;
+	
+	/**
+	 * Context for TLS connections, null if TCP clients use plaintext.
+	 */
+	private SSLContext sslContext;
+	
+	/**
+	 * Buffers for encrypted records and for decrypted data, only used while TLS is enabled.
+	 */
+	private BufferPool packetPool;
+	private BufferPool appPool;
+	
+	/**
+	 * Closed TLS clients whose connections are closed by the selector thread at the end of
+	 * its step, since only that thread may use their sessions and the buffer pools.
+	 */
+	private ConcurrentLinkedQueue<Client> closedTls;
+	
+	/**
+	 * Stages every received message passes through, from decoding to queuing it for recipients.
+	 */
+	private Pipeline pipeline;
 	
 	private final long MAXCOUNTER = 1000000;
 	
@@ -62,14 +146,49 @@ public class Server {
 	 * Initializes the connections HashMap and the counter with a random value between [1,100]
 	 */
 	public Server(int port) {
-		this.port = port;		
-		connections = new ConcurrentHashMap<>();
-		usernames = new HashSet<String>();
-		heartBeatManager = new HeartBeatManager(this);
+		this(port, null);
+	}
+	
+	/**
+	 * Constructs a new {@link Server} object that also accepts clients on a Unix domain socket.
+	 * Local clients skip the TCP stack but are otherwise treated exactly like TCP clients.
+	 * 
+	 * @param port TCP port to listen on
+	 * @param socketPath path of the Unix domain socket, or null to only listen on TCP
+	 */
+	public Server(int port, Path socketPath) {
+		this(new NioTransport(port, socketPath), TimeSource.SYSTEM);
+	}
+	
+	/**
+	 * Constructs a new {@link Server} object on any transport, e.g. a {@link SimulatedTransport}
+	 * with a {@link VirtualClock} to drive the server by hand with {@link #step()}.
+	 * 
+	 * @param transport source of client connections
+	 * @param timeSource clock for heartbeat timeouts and rate limits
+	 */
+	public Server(Transport transport, TimeSource timeSource) {
+		this.transport = transport;
+		this.timeSource = timeSource;
+		events = new TransportEvents();
+		connections = ConcurrentHashMap.newKeySet();
+		usernames = new ConcurrentHashMap<>();
+		heartBeatManager = new HeartBeatManager(this, timeSource);
 		// TODO: how to choose correct buffer size?
-		readBuf = ByteBuffer.allocate(bufCapacity);
-		writeBuf = ByteBuffer.allocate(bufCapacity);
-		toWrite = new HashMap<>();
+		bufferPool = new BufferPool(bufCapacity, 64);
+		rateLimit = new RateLimit(5, 10, 4096, 8192, RateLimit.Action.REJECT);
+		paused = new ArrayDeque<Client>();
+		closedTls = new ConcurrentLinkedQueue<Client>();
+		presenceDigest = new PresenceDigest(100, 1000);
+		joinedCount = new AtomicInteger();
+		leftCount = new AtomicInteger();
+		pipeline = new Pipeline(bufCapacity, Runtime.getRuntime().availableProcessors());
+		pipeline.addLast("decode", new Stages.DecodeStage(heartBeatManager));
+		pipeline.addLast("session", new Stages.SessionStage(this));
+		pipeline.addLast("command", new Stages.CommandStage(this));
+		pipeline.addLast("filter", new Stages.FilterStage());
+		pipeline.addLast("route", new Stages.RouteStage());
+		pipeline.addLast("encode", new Stages.EncodeStage(this));
 
 		Random rand = new Random();
 		counter = (long) rand.nextInt(100) + 1;
@@ -77,13 +196,7 @@ public class Server {
 	}
 	
 	public void start() throws IOException {
-		
-		selector = Selector.open();
-		ServerSocketChannel serverSocket = ServerSocketChannel.open();
-		serverSocket.bind(new InetSocketAddress(port));
-		serverSocket.configureBlocking(false);
-		serverSocket.register(selector, SelectionKey.OP_ACCEPT);
-		System.out.println("Listening on port " + port + "\n");
+		open();
 		heartBeatManager.start();
 		
 		while(true) {
@@ -92,164 +205,483 @@ public class Server {
 			} catch (InterruptedException e) {
 				
 			}
-			selector.select();
-			Set<SelectionKey> selectedKeys = selector.selectedKeys();
-			Iterator<SelectionKey> iter = selectedKeys.iterator();
-			
-			while(iter.hasNext()) {
-				SelectionKey key = iter.next();
-				
-				try {
-					if (key.isAcceptable())
-						acceptConnection(selector, serverSocket);
-					
-					if (key.isWritable())
-						send(key);
-					
-					if (key.isReadable())
-						receiveMessage(key);
-				} catch(CancelledKeyException e) {
-					
-				} finally {
-				iter.remove();
-				}
-			}
+			step();
 		}
 	}
 	
-	private void acceptConnection(Selector selector, ServerSocketChannel serverSocket) {
-		try {
-			SocketChannel socket = serverSocket.accept();
-			socket.configureBlocking(false);
-			socket.register(selector, (SelectionKey.OP_READ | SelectionKey.OP_WRITE));
-			String address = socket.getRemoteAddress().toString();
-			Client client = new Client(address, socket);
-			addConnection(client);
-			heartBeatManager.initializeHeartBeat(client);
-			sendMessage(usernameReq, client);
-			System.out.println("Accepted connection from: "+ address);
-		} catch (IOException e) {
-			// client failed suddenly?
+	/**
+	 * Starts accepting connections. Only needed when the server is driven with {@link #step()}
+	 * instead of {@link #start()}.
+	 */
+	public void open() throws IOException {
+		transport.open();
+	}
+	
+	/**
+	 * Runs one pass of the event loop: handles every connection the transport reports as ready,
+	 * then resumes paused connections, sends the presence digest when it is due and closes
+	 * the connections of closed TLS clients.
+	 * Waits for the transport unless connections are paused or a digest is pending.
+	 * Heartbeats are not checked here, see {@link #checkHeartBeats()}.
+	 */
+	public void step() throws IOException {
+		long timeout = 0;
+		PresenceDigest digest = presenceDigest;
+		if (!paused.isEmpty())
+			timeout = resumeCheckPeriod;
+		else if (digest != null && hasPresenceChanges())
+			timeout = digest.getPeriod();
+		transport.poll(timeout, events);
+		resumePaused();
+		sendPresenceDigest();
+		closeTlsConnections();
+	}
+	
+	/**
+	 * Closes every client whose last heartbeat is too old. This is what the heartbeat thread
+	 * started by {@link #start()} does periodically, a simulation calls it after advancing its clock.
+	 */
+	public void checkHeartBeats() {
+		heartBeatManager.sweep(timeSource.millis());
+	}
+	
+	/**
+	 * Turns the per-connection and per-message output on or off, e.g. off for simulations
+	 * with many clients.
+	 */
+	public void setLogging(boolean logging) {
+		this.logging = logging;
+	}
+	
+	/**
+	 * Replaces the rate limit of the chat room, takes effect on the next frame of every user.
+	 * 
+	 * @param rateLimit new limit, or null to disable rate limiting
+	 */
+	public void setRateLimit(RateLimit rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+	
+	public RateLimit getRateLimit() {
+		return rateLimit;
+	}
+	
+	/**
+	 * Replaces the presence digest settings of the chat room. Joins and leaves already counted
+	 * still go out with the next digest.
+	 * 
+	 * @param presenceDigest new settings, or null to announce every join and leave on its own
+	 */
+	public void setPresenceDigest(PresenceDigest presenceDigest) {
+		this.presenceDigest = presenceDigest;
+		transport.wakeup(); // counted joins and leaves may be due now
+	}
+	
+	public PresenceDigest getPresenceDigest() {
+		return presenceDigest;
+	}
+	
+	/**
+	 * @return the pipeline received messages pass through, stages can be added to it at any time
+	 */
+	public Pipeline getPipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Makes clients connecting over TCP use TLS, must be called before {@link #start()}.
+	 * Clients of the Unix domain socket are on the same host and keep using plaintext.
+	 * 
+	 * @param sslContext context holding the server's key and certificate
+	 */
+	public void enableTls(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		SSLEngine engine = sslContext.createSSLEngine();
+		packetPool = new BufferPool(engine.getSession().getPacketBufferSize(), 64);
+		appPool = new BufferPool(engine.getSession().getApplicationBufferSize(), 64);
+	}
+	
+	private void acceptConnection(Connection connection) {
+		Client client = new Client(connection);
+		if (sslContext != null && !connection.isLocal()) {
+			SSLEngine engine = sslContext.createSSLEngine();
+			engine.setUseClientMode(false);
+			try {
+				engine.beginHandshake();
+			} catch (IOException e) {
+				close(client);
+				return;
+			}
+			client.tls = new TlsSession(engine, connection, packetPool, appPool);
 		}
+		connection.attach(client);
+		addConnection(client);
+		heartBeatManager.initializeHeartBeat(client);
+		sendMessage(usernameReq, client);
+		if (logging)
+			System.out.println("Accepted connection from: "+ client.getAddress());
 	}
 	
-	private Client getClient(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-		String remoteAddress = "";
-		try {
-			remoteAddress = channel.getRemoteAddress().toString();
-		} catch (IOException e) {
-			// client connection failed
+	private Client getClient(Connection connection) {
+		Client client = (Client) connection.attachment();
+		if (client == null || client.isClosed()) {
+			// client connection is terminated
 			return null;
 		}
-		return connections.get(remoteAddress);
+		return client;
 	}
 	
-	private void receiveMessage(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-		Client client = getClient(key);
+	private void receiveMessage(Connection connection) {
+		Client client = getClient(connection);
 		if (client == null) {
 			// client connection is terminated
 			return;
 		}
-		int bytesRead = read(channel);
-		if (bytesRead == 0 || bytesRead == -1) {
-			// no new messages or connection may be closed
-			return;
+		receiveMessage(client);
+	}
+	
+	private void receiveMessage(Client client) {
+		do {
+			// continue a partially received frame, or borrow a fresh buffer
+			ByteBuffer readBuf = client.inbound != null ? client.inbound : bufferPool.acquire();
+			client.inbound = null;
+			int bytesRead = read(client, readBuf);
+			if ((bytesRead == 0 || bytesRead == -1) && readBuf.position() == 0) {
+				// no new messages or connection may be closed
+				bufferPool.release(readBuf);
+				break;
+			}
+			readBuf.flip(); // switch buffer from writing mode to reading mode
+			processFrames(client, readBuf);
+			// TLS may have decrypted more than fit in the buffer, the selector won't report it again
+		} while (client.tls != null && client.tls.hasBufferedInput() && isReading(client));
+		if (client.tls != null && !client.isClosed())
+			resumeWrites(client);
+	}
+	
+	private boolean isReading(Client client) {
+		return !client.isClosed() && client.connection.isReading();
+	}
+	
+	/**
+	 * Watches for writing again if a TLS connection has something to write. Writes stop while
+	 * the handshake waits for the peer, and reading is what moves the handshake on.
+	 */
+	private void resumeWrites(Client client) {
+		synchronized (client) {
+			if (client.outbox == null && client.outbound == null && !client.tls.hasPendingWrites())
+				return;
+			client.connection.setWriting(true);
 		}
-		readBuf.flip(); // switch buffer from writing mode to reading mode
-		while (readBuf.remaining() > 0) {
+	}
+	
+	/**
+	 * Handles all complete frames in readBuf, keeping any partial frame on the client.
+	 * Stops early if the client is paused by the rate limit or a full pipeline worker.
+	 */
+	private void processFrames(Client client, ByteBuffer readBuf) {
+		RateLimit limit = rateLimit;
+		long now = limit == null ? 0 : timeSource.nanos(); // read the clock once per batch
+		while (readBuf.remaining() >= headerSize && !client.isClosed()) {
+			int frameStart = readBuf.position();
 			long ts = readBuf.getLong();
-			counter = Math.max(counter, ts) + 1;
 			int msgLength = readBuf.getInt();
-			if (msgLength == 0) {
-				// heart beat message
-				heartBeatManager.addHeartBeat(client);
-			} else { // normal message
+			if (msgLength < 0 || msgLength > bufCapacity - headerSize) {
+				// corrupt frame, it can never fit in a buffer
+				heartBeatManager.closeClient(client);
+				break;
+			}
+			if (readBuf.remaining() < msgLength) {
+				// rest of the frame has not arrived yet
+				readBuf.position(frameStart);
+				break;
+			}
+			if (!pipeline.canAccept(client)) {
+				// pipeline workers are behind, leave the frame in the buffer until they catch up
+				readBuf.position(frameStart);
+				pause(client);
+				break;
+			}
+			if (msgLength > 0 && limit != null && !limit.tryAcquire(client, msgLength, now)) {
+				if (limit.getAction() == RateLimit.Action.PAUSE) {
+					// leave the frame in the buffer and let TCP push back on the sender
+					readBuf.position(frameStart);
+					pause(client);
+					break;
+				}
+				readBuf.position(readBuf.position() + msgLength); // drop the frame
+				if (!client.rateLimited) {
+					client.rateLimited = true; // notify once per run of rejected frames
+					sendMessage(rateLimitedMsg, client);
+				}
+				continue;
+			}
+			if (msgLength > 0)
+				client.rateLimited = false;
+			counter = Math.max(counter, ts) + 1;
+			if (msgLength > 0 && logging) {
 				System.out.println("Message received from " + client.getAddress());
 				System.out.printf("Sent at: %d, received at: %d\n\n", ts, counter);
-				byte[] bytes = Arrays.copyOfRange(readBuf.array(), readBuf.position(), 
-						readBuf.position() + msgLength); // get text part as bytes
-				String message = new String(bytes, StandardCharsets.UTF_8);
-				if (client.hasUsername()) {
-					readMessage(message, client);
-				} else {
-					checkUsername(message, client);
-				}
 			}
-			if ((readBuf.position() + msgLength) > readBuf.limit())
-				readBuf.position(readBuf.limit()); // or break
-			else
-				readBuf.position(readBuf.position() + msgLength);
+			Message message = pipeline.message();
+			message.sender = client;
+			message.timestamp = ts;
+			message.length = msgLength;
+			readBuf.get(message.payload, 0, msgLength); // get text part as bytes
+			pipeline.fire(message);
+		}
+		if (readBuf.hasRemaining() && !client.isClosed()) {
+			// keep the partial frame until the next read
+			readBuf.compact();
+			client.inbound = readBuf;
+		} else {
+			bufferPool.release(readBuf);
 		}
-		readBuf.clear(); // make buffer ready for next channel read operation
 	}
 	
 	
-	private int read(SocketChannel client) {
+	private void pause(Client client) {
+		client.connection.setReading(false);
+		// the client is clearly alive, don't let the pause count against its heartbeats
+		heartBeatManager.addHeartBeat(client);
+		paused.add(client);
+	}
+	
+	/**
+	 * Resumes reading from paused connections whose buckets have refilled enough for
+	 * the frame they were paused on, and whose pipeline worker can take it. Frames already buffered are handled right away,
+	 * since the selector will not report them again.
+	 */
+	private void resumePaused() {
+		RateLimit limit = rateLimit;
+		long now = timeSource.nanos();
+		for (int i = paused.size(); i > 0; i--) {
+			Client client = paused.poll();
+			if (client.isClosed())
+				continue;
+			ByteBuffer readBuf = client.inbound;
+			int msgLength = readBuf == null ? 0 : readBuf.getInt(8); // frame is at the buffer start
+			boolean limited = limit != null && limit.getAction() == RateLimit.Action.PAUSE
+					&& !limit.canAcquire(client, msgLength, now);
+			if (limited || !pipeline.canAccept(client)) {
+				// its heartbeats queue up behind the paused frame, the pause ends once the
+				// buckets refill and the workers catch up, so this cannot keep a dead
+				// connection around for long
+				heartBeatManager.addHeartBeat(client);
+				paused.add(client);
+				continue;
+			}
+			client.connection.setReading(true);
+			// handle the frames already buffered, the selector will not report them again
+			receiveMessage(client);
+		}
+	}
+	
+	private int read(Client client, ByteBuffer readBuf) {
+		if (client.tls == null) {
+			try {
+				return client.getConnection().read(readBuf);
+			} catch (IOException e) {
+				// connection was probably closed
+				return -1;
+			}
+		}
 		try {
-			return client.read(readBuf);
+			boolean handshaking = client.tls.isHandshaking();
+			int bytesRead = client.tls.read(readBuf);
+			if (bytesRead == -1) {
+				// the selector reports a closed connection as readable on every select
+				closeClient(client);
+			} else if (handshaking && client.tls.receivedBytes()) {
+				// heartbeats only start after the handshake, which can take a while
+				heartBeatManager.addHeartBeat(client);
+			}
+			return bytesRead;
 		} catch (IOException e) {
-			// connection was probably closed
+			// broken record or connection, the session cannot recover from either
+			closeClient(client);
 			return -1;
 		}
 	}
 	
 	private void addConnection(Client client) {
-		connections.put(client.getAddress(), client);
+		connections.add(client);
+	}
+	
+	void sendMessage(String message, Client client) {
+		enqueue(encode(message), client);
+	}
+	
+	/**
+	 * Encodes an outgoing message, cutting it at a character boundary if it does not fit in a frame.
+	 * A chat message of the largest size the client can send gets longer by the sender's name.
+	 */
+	byte[] encode(String message) {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= maxPayload)
+			return bytes;
+		int end = maxPayload;
+		while ((bytes[end] & 0xc0) == 0x80)
+			end--; // don't split a multi-byte character
+		return Arrays.copyOf(bytes, end);
 	}
 	
-	private void sendMessage(String message, Client client) {
-		String addr = client.getAddress();
-		if (!toWrite.containsKey(addr))
-			toWrite.put(addr, new ArrayDeque<String>());
-		ArrayDeque<String> msgs = toWrite.get(addr);
-		msgs.add(message);
+	/**
+	 * Queues an already encoded message, see {@link #encode(String)}. The bytes may be shared between
+	 * recipients and must not change.
+	 */
+	void enqueue(byte[] message, Client client) {
+		if (message.length > maxPayload)
+			message = Arrays.copyOf(message, maxPayload); // would overflow the frame buffer in send
+		synchronized (client) {
+			if (client.isClosed())
+				return;
+			if (client.outbox == null)
+				client.outbox = new ArrayDeque<byte[]>(4);
+			client.outbox.add(message);
+			Connection connection = client.connection;
+			if (!connection.isWriting()) {
+				connection.setWriting(true);
+				transport.wakeup(); // may be called from the heartbeat thread
+			}
+		}
+	}
+	
+	private byte[] nextMessage(Client client) {
+		synchronized (client) {
+			byte[] message = client.outbox == null ? null : client.outbox.poll();
+			if (message == null) {
+				// nothing left to write, drop the queue and stop watching for writing
+				client.outbox = null;
+				client.connection.setWriting(false);
+			}
+			return message;
+		}
 	}
 	
-		private void send(SelectionKey key) {
-			Client client = getClient(key);
+		private void send(Connection connection) {
+			Client client = getClient(connection);
 			if (client == null) {
 				// client connection is terminated
 				return;
 			}
-			String addr = client.getAddress();
-			if (!toWrite.containsKey(addr) || toWrite.get(addr).isEmpty())
-				return;
-			String message = "";
-				message = toWrite.get(addr).remove();
-			if (++counter >= MAXCOUNTER)
-				counter = 1;
-			long ts = counter;
-			byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
-			
 			try {
-				writeBuf.putLong(ts);
-				writeBuf.putInt(msgBytes.length); // size of message (in bytes) is written first
-				writeBuf.put(msgBytes); // buffer: [ts message]
-				writeBuf.flip(); // prepare buffer for channel write
-				SocketChannel channel = client.getChannel();
-				channel.write(writeBuf);
-				System.out.printf("Message sent at: %d to %s\n\n", ts, client.getAddress());
-				writeBuf.clear();
-			} catch(IOException e) {
-				writeBuf.clear();
+				if (client.tls != null && !client.tls.flush())
+					return; // earlier encrypted data is still waiting
+			} catch (IOException e) {
 				close(client);
+				return;
+			}
+			while (true) {
+				ByteBuffer writeBuf = client.outbound;
+				client.outbound = null;
+				if (writeBuf == null) {
+					byte[] msgBytes = nextMessage(client);
+					if (msgBytes == null)
+						return;
+					if (++counter >= MAXCOUNTER)
+						counter = 1;
+					long ts = counter;
+					writeBuf = bufferPool.acquire();
+					writeBuf.putLong(ts);
+					writeBuf.putInt(msgBytes.length); // size of message (in bytes) is written first
+					writeBuf.put(msgBytes); // buffer: [ts message]
+					writeBuf.flip(); // prepare buffer for channel write
+					if (logging)
+						System.out.printf("Message sent at: %d to %s\n\n", ts, client.getAddress());
+				}
+				try {
+					if (client.tls != null) {
+						// every recipient encrypts the shared frame with its own session
+						client.tls.write(writeBuf);
+					} else {
+						connection.write(writeBuf);
+					}
+				} catch(IOException e) {
+					bufferPool.release(writeBuf);
+					close(client);
+					return;
+				}
+				if (writeBuf.hasRemaining()) {
+					// socket buffer is full, finish this frame on the next OP_WRITE
+					client.outbound = writeBuf;
+					if (client.tls != null && client.tls.isHandshaking() && !client.tls.hasPendingWrites())
+						pauseWrites(client); // waiting for the peer, see resumeWrites
+					return;
+				}
+				bufferPool.release(writeBuf);
+				if (client.tls != null && client.tls.hasPendingWrites())
+					return; // keep OP_WRITE until the encrypted frame is out
 			}
 		}
 	
-	private void checkUsername(String username, Client client) {
-		if (usernameExists(username)) {
-			sendMessage("Sorry, username exists!\n" + usernameReq, client);
-		} else if (username.length() < 2) {
+	private void pauseWrites(Client client) {
+		synchronized (client) {
+			client.connection.setWriting(false);
+		}
+	}
+	
+	/**
+	 * Gives the client the username if it is valid and free. Claiming the name is a single
+	 * step, so two clients cannot get the same name even when pipeline workers call this at once.
+	 */
+	void checkUsername(String username, Client client) {
+		if (username.length() < 2) {
 			sendMessage("Sorry, username must be at least two characters long!\n" + 
 					usernameReq, client);
+		} else if (username.length() > maxUsernameLength) {
+			sendMessage("Sorry, username must be at most " + maxUsernameLength + " characters long!\n" +
+					usernameReq, client);
+		} else if (usernames.putIfAbsent(username, client) != null) {
+			sendMessage("Sorry, username exists!\n" + usernameReq, client);
 		} else {
 			client.updateUsername(username);
-			usernames.add(username);
 			sendMessage(welcomeMsg, client);
-			broadcast(username + " has joined the chat!", null, true);
+			announcePresence(username, true);
+		}
+	}
+	
+	/**
+	 * Tells the chat room that a user joined or left, right away in a small room,
+	 * or with the next digest once the room reaches the digest threshold.
+	 * Called from the selector thread and from the heartbeat thread.
+	 */
+	void announcePresence(String username, boolean joined) {
+		PresenceDigest digest = presenceDigest;
+		if (digest != null && digest.isDigested(usernames.size())) {
+			AtomicInteger count = joined ? joinedCount : leftCount;
+			if (count.getAndIncrement() == 0)
+				transport.wakeup(); // the selector may be waiting without a timeout
+			return;
 		}
+		if (hasPresenceChanges())
+			flushPresence(); // keep the digest ahead of the notice that follows it
+		broadcast(username + (joined ? " has joined the chat!" : " has left the chat!"), null, true);
+	}
+	
+	private boolean hasPresenceChanges() {
+		return joinedCount.get() > 0 || leftCount.get() > 0;
+	}
+	
+	/**
+	 * Sends the digest of counted joins and leaves if its period is over, or right away
+	 * if digests were turned off meanwhile.
+	 */
+	private void sendPresenceDigest() {
+		PresenceDigest digest = presenceDigest;
+		long now = timeSource.millis();
+		if (digest != null && now - lastDigest < digest.getPeriod())
+			return;
+		lastDigest = now;
+		flushPresence();
+	}
+	
+	private void flushPresence() {
+		int joined = joinedCount.getAndSet(0);
+		int left = leftCount.getAndSet(0);
+		if (joined == 0 && left == 0)
+			return;
+		broadcast(PresenceDigest.format(joined, left), null, true);
 	}
 	
 	/**
@@ -259,16 +691,21 @@ public class Server {
 	 * @return true if username is not unique among active clients, false otherwise
 	 */
 	public boolean usernameExists(String username) {
-		return usernames.contains(username);
+		return usernames.containsKey(username);
 	}
 	
-	private void readMessage(String message, Client client) {
-		if (message.trim().equals(":quit")) {
-			sendMessage("-1", client); // send acknowledgement?
-			heartBeatManager.closeClient(client);
-		} else {
-			broadcast(message, client, false);
-		}
+	/**
+	 * @return the user of the chat room with this username, or null if there is none
+	 */
+	Client getUser(String username) {
+		return usernames.get(username);
+	}
+	
+	/**
+	 * Closes the connection and tells the chat room that the user left.
+	 */
+	void closeClient(Client client) {
+		heartBeatManager.closeClient(client);
 	}
 		
 	protected void broadcast(String message, Client sender, boolean isServerMsg) {
@@ -279,135 +716,73 @@ public class Server {
 			String senderUsername = sender.getUsername();
 			toSend = senderUsername + ": " + message;
 		}
-		connections.forEach((addr, client) -> {
+		broadcast(encode(toSend));
+	}
+	
+	/**
+	 * Queues the same encoded message for everyone in the chat room.
+	 */
+	void broadcast(byte[] message) {
+		for (Client client : connections) {
 			if (client.inChatRoom()) {
-				sendMessage(toSend, client);
+				enqueue(message, client);
 			}
-		});
+		}
 	}
 	
 	public void close(Client client) {
-		SocketChannel channel = client.getChannel();
-		String addr = client.getAddress();
-		try {
-			System.out.println("Closed connection with " + addr + "\n");
-			channel.close();
-		} catch (IOException e) {
-			// if the channel is already closed, manually cancel its SelectionKey, not sure if this is needed
-			channel.keyFor(selector).cancel();
+		if (logging)
+			System.out.println("Closed connection with " + client.getAddress() + "\n");
+		if (client.tls != null) {
+			// may run on the heartbeat thread, the selector thread sends close_notify
+			closedTls.add(client);
+			transport.wakeup();
+		} else {
+			closeConnection(client);
 		}
 		if (client.hasUsername())
-			usernames.remove(client.getUsername());
-		connections.remove(client.getAddress());
-		client.setClosed();
-	}
-}
-
-
-class Client {
-	String username;
-	String address;
-	SocketChannel channel;
-	long lastHeartBeat;
-	boolean closed = false;
-	
-	public Client(String address, SocketChannel channel) {
-		this.address = address;
-		this.channel = channel;
-		this.username = null;
-	}
-	
-	public void updateUsername(String username) {
-		this.username = username;
-	}
-	
-	public String getUsername() {
-		return username;
-	}
-	
-	public String getAddress() {
-		return address;
-	}
-	
-	public SocketChannel getChannel() {
-		return channel;
-	}
-	
-	public long getLastHeartBeat() {
-		return lastHeartBeat;
-	}
-	
-	public void setLastHeartBeat(long time) {
-		lastHeartBeat = time;
-	}
-	
-	public boolean hasUsername() {
-		return username != null;
-	}
-	
-	public boolean inChatRoom() {
-		return hasUsername();
-	}
-	
-	public boolean isClosed() {
-		return closed;
-	}
-	
-	public void setClosed() {
-		closed = true;
-	}
-}
-
-
-class HeartBeatManager implements Runnable {
-	
-	private Server server;
-	private int hbFactor = 4;
-	private long hbPeriod = 200;
-	
-	public HeartBeatManager(Server server) {
-		this.server = server;
-	}
-	
-	public void start() {
-		Thread th = new Thread(this);
-		th.start();
-	}
-	
-	public void run() {
-		long now, last;
-		while (true) {
-			now = new Date().getTime(); // in milliseconds
-			for (Client client: server.connections.values()) {
-				last = client.getLastHeartBeat();
-				if ((now - last) > (hbFactor * hbPeriod)) {
-					closeClient(client);
-				}
-			}
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-			}
+			usernames.remove(client.getUsername(), client);
+		connections.remove(client);
+		synchronized (client) {
+			client.setClosed();
+			// may run on the heartbeat thread, so buffers are dropped rather than
+			// returned to the (selector thread only) pool
+			client.inbound = null;
+			client.outbound = null;
+			client.outbox = null;
 		}
 	}
 	
-	public void initializeHeartBeat(Client client) {
-		if (client.isClosed())
-			return;
-		long now = new Date().getTime();
-		client.setLastHeartBeat(now);
+	/**
+	 * Sends close_notify to closed TLS clients, returns their buffers and closes their connections.
+	 */
+	private void closeTlsConnections() {
+		Client client;
+		while ((client = closedTls.poll()) != null) {
+			client.tls.close();
+			closeConnection(client);
+		}
 	}
 	
-	public void addHeartBeat(Client client) {
-		if (client.isClosed())
-			return; // ignore if it is a message from a closed client
-		long now = new Date().getTime(); // in milliseconds
-		client.setLastHeartBeat(now);
+	private void closeConnection(Client client) {
+		try {
+			client.getConnection().close();
+		} catch (IOException e) {
+			// already closed
+		}
 	}
 	
-	public void closeClient(Client client) {
-		server.close(client);
-		if (client.getUsername() != null)
-			server.broadcast(client.getUsername() + " has left the chat!", null, true);
+	private class TransportEvents implements Transport.Events {
+		public void accepted(Connection connection) {
+			acceptConnection(connection);
+		}
+		
+		public void writable(Connection connection) {
+			send(connection);
+		}
+		
+		public void readable(Connection connection) {
+			receiveMessage(connection);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,315 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection of {@link SimulatedTransport}. The server uses it through {@link Connection},
+ * the simulation plays the client with the public methods that send frames to the server and
+ * receive what it wrote back.
+ */
+public class SimulatedConnection implements Connection {
+
+	/**
+	 * Size of the frame header: timestamp (long) followed by message length (int).
+	 */
+	private static final int headerSize = 12;
+
+	private SimulatedTransport transport;
+	private int id;
+	private int readChunk;
+	private int window;
+
+	/**
+	 * Bytes sent by the client that the server has not read yet.
+	 */
+	private ByteQueue toServer;
+
+	/**
+	 * Bytes written by the server that the client has not received yet.
+	 */
+	private ByteQueue toClient;
+
+	/**
+	 * Bytes the client received that do not form a complete frame yet.
+	 */
+	private ByteQueue received;
+
+	private boolean reading = false;
+	private boolean writing = false;
+	private boolean closed = false;
+	private boolean clientClosed = false;
+	private Object attachment;
+
+	SimulatedConnection(SimulatedTransport transport, int id, int readChunk, int window) {
+		this.transport = transport;
+		this.id = id;
+		this.readChunk = readChunk;
+		this.window = window;
+		toServer = new ByteQueue();
+		toClient = new ByteQueue();
+		received = new ByteQueue();
+	}
+
+	// ---- client side ----
+
+	/**
+	 * Sends raw bytes to the server, they may hold any number of frames or parts of frames.
+	 */
+	public void send(byte[] bytes) {
+		if (clientClosed)
+			throw new IllegalStateException("Client already disconnected");
+		toServer.put(bytes, 0, bytes.length);
+		transport.update(this);
+	}
+
+	/**
+	 * Sends one message frame, encoded the same way as the real client does.
+	 */
+	public void sendFrame(long timestamp, String message) {
+		byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(headerSize + msgBytes.length);
+		frame.putLong(timestamp);
+		frame.putInt(msgBytes.length);
+		frame.put(msgBytes);
+		send(frame.array());
+	}
+
+	public void sendHeartBeat(long timestamp) {
+		sendFrame(timestamp, "");
+	}
+
+	/**
+	 * Receives everything the server wrote so far.
+	 *
+	 * @return texts of the complete frames, a partial frame is kept for the next call
+	 */
+	public List<String> receive() {
+		return receive(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Receives at most maxBytes of what the server wrote, to play a slow client.
+	 * Frees the same amount of the window for the server.
+	 *
+	 * @return texts of the frames completed by this call
+	 */
+	public List<String> receive(int maxBytes) {
+		List<String> messages = new ArrayList<String>();
+		int n = Math.min(maxBytes, toClient.size());
+		if (n == 0)
+			return messages;
+		received.put(toClient, n);
+		transport.update(this);
+		while (received.size() >= headerSize) {
+			int msgLength = received.intAt(8);
+			if (received.size() < headerSize + msgLength)
+				break;
+			received.skip(headerSize);
+			byte[] msgBytes = new byte[msgLength];
+			received.get(msgBytes);
+			messages.add(new String(msgBytes, StandardCharsets.UTF_8));
+		}
+		return messages;
+	}
+
+	/**
+	 * @return number of bytes the server wrote that the client has not received yet
+	 */
+	public int pendingBytes() {
+		return toClient.size();
+	}
+
+	/**
+	 * Closes the client's end, the server reads the end of the stream once it has read the rest.
+	 */
+	public void disconnect() {
+		clientClosed = true;
+		transport.update(this);
+	}
+
+	/**
+	 * @return true if the server closed the connection
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	// ---- server side ----
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		if (toServer.size() == 0)
+			return clientClosed ? -1 : 0;
+		int n = toServer.get(dst, readChunk);
+		transport.update(this);
+		return n;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		if (clientClosed)
+			throw new IOException("Connection reset by peer");
+		int n = Math.min(src.remaining(), window - toClient.size());
+		if (n <= 0)
+			return 0;
+		toClient.put(src, n);
+		transport.update(this);
+		return n;
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	public void close() {
+		closed = true;
+		reading = false;
+		writing = false;
+	}
+
+	public void setReading(boolean reading) {
+		if (closed)
+			return;
+		this.reading = reading;
+		transport.update(this);
+	}
+
+	public boolean isReading() {
+		return reading;
+	}
+
+	public void setWriting(boolean writing) {
+		if (closed)
+			return;
+		this.writing = writing;
+		transport.update(this);
+	}
+
+	public boolean isWriting() {
+		return writing;
+	}
+
+	public void attach(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	public Object attachment() {
+		return attachment;
+	}
+
+	public String getAddress() {
+		return "simulated client " + id;
+	}
+
+	public boolean isLocal() {
+		return false;
+	}
+
+	boolean isReadable() {
+		return reading && (toServer.size() > 0 || clientClosed);
+	}
+
+	boolean isWritable() {
+		return writing && toClient.size() < window;
+	}
+}
+
+
+/**
+ * A growable FIFO of bytes. Holds no array while empty, so idle simulated connections stay small.
+ */
+class ByteQueue {
+	private byte[] bytes;
+	private int start = 0;
+	private int end = 0;
+
+	public int size() {
+		return end - start;
+	}
+
+	public void put(byte[] src, int offset, int length) {
+		if (length == 0)
+			return;
+		ensureRoom(length);
+		System.arraycopy(src, offset, bytes, end, length);
+		end += length;
+	}
+
+	/**
+	 * Moves n bytes from src.
+	 */
+	public void put(ByteBuffer src, int n) {
+		ensureRoom(n);
+		src.get(bytes, end, n);
+		end += n;
+	}
+
+	/**
+	 * Moves n bytes from the front of another queue.
+	 */
+	public void put(ByteQueue src, int n) {
+		put(src.bytes, src.start, n);
+		src.skip(n);
+	}
+
+	/**
+	 * Moves up to max bytes into dst.
+	 *
+	 * @return number of bytes moved
+	 */
+	public int get(ByteBuffer dst, int max) {
+		int n = Math.min(size(), Math.min(max, dst.remaining()));
+		if (n == 0)
+			return 0;
+		dst.put(bytes, start, n);
+		skip(n);
+		return n;
+	}
+
+	public void get(byte[] dst) {
+		if (dst.length == 0)
+			return;
+		System.arraycopy(bytes, start, dst, 0, dst.length);
+		skip(dst.length);
+	}
+
+	/**
+	 * @return the big endian int at index, counted from the front of the queue
+	 */
+	public int intAt(int index) {
+		return ByteBuffer.wrap(bytes).getInt(start + index);
+	}
+
+	public void skip(int n) {
+		start += n;
+		if (start == end) {
+			bytes = null;
+			start = 0;
+			end = 0;
+		}
+	}
+
+	private void ensureRoom(int n) {
+		if (bytes == null) {
+			bytes = new byte[Math.max(n, 256)];
+		} else if (bytes.length - end < n) {
+			int size = size();
+			byte[] newBytes = size + n > bytes.length ? new byte[Math.max(size + n, bytes.length * 2)] : bytes;
+			System.arraycopy(bytes, start, newBytes, 0, size);
+			bytes = newBytes;
+			start = 0;
+			end = size;
+		}
+	}
+}
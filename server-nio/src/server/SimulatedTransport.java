@@ -0,0 +1,123 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+
+/**
+ * An in-memory transport for running the server against many simulated clients on one thread,
+ * without sockets or a selector. Nothing happens in the background: connections are accepted and
+ * events delivered only when the server polls, see {@link Server#step()}, so a run is fully
+ * deterministic. Combined with a {@link VirtualClock}, heartbeat timeouts and rate limits can be
+ * tested without waiting.
+ * <p>
+ * Each poll reports every connection that is ready at that moment, in the order they became ready.
+ * Like a selector, a connection that is still ready afterwards is reported again by the next poll.
+ * Reads and writes can be made partial per connection, and a client that does not read
+ * fills its window until the server's writes stall, like a slow TCP consumer.
+ *
+ * <pre>
+ * VirtualClock clock = new VirtualClock();
+ * SimulatedTransport transport = new SimulatedTransport();
+ * Server server = new Server(transport, clock);
+ * server.open();
+ * SimulatedConnection alice = transport.connect();
+ * server.step();
+ * alice.sendFrame(1, "alice");
+ * server.step();
+ * List&lt;String&gt; received = alice.receive();
+ * </pre>
+ *
+ * Not thread safe, the server must not be started with {@link Server#start()}. Only pipeline
+ * worker threads may make connections ready for writing while the server steps.
+ */
+public class SimulatedTransport implements Transport {
+
+	private ArrayDeque<SimulatedConnection> pendingAccepts;
+
+	/**
+	 * Connections that may be ready for the next poll, without duplicates and in order.
+	 */
+	private LinkedHashSet<SimulatedConnection> ready;
+
+	private int readChunk = Integer.MAX_VALUE;
+	private int window = 64 * 1024;
+	private int connectionCount = 0;
+
+	public SimulatedTransport() {
+		pendingAccepts = new ArrayDeque<SimulatedConnection>();
+		ready = new LinkedHashSet<SimulatedConnection>();
+	}
+
+	/**
+	 * Sets the most bytes a server read returns, for connections made after this call.
+	 * A small chunk splits frames across reads.
+	 */
+	public void setReadChunk(int readChunk) {
+		if (readChunk < 1)
+			throw new IllegalArgumentException("Read chunk must be positive");
+		this.readChunk = readChunk;
+	}
+
+	/**
+	 * Sets how many bytes the server can write to a client that is not reading,
+	 * for connections made after this call.
+	 */
+	public void setWindow(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Window must be positive");
+		this.window = window;
+	}
+
+	/**
+	 * Opens a new client connection, it is accepted by the server's next poll.
+	 *
+	 * @return the client's end of the connection
+	 */
+	public SimulatedConnection connect() {
+		SimulatedConnection connection = new SimulatedConnection(this, ++connectionCount, readChunk, window);
+		pendingAccepts.add(connection);
+		return connection;
+	}
+
+	public void open() {
+		// nothing to bind
+	}
+
+	public void poll(long timeout, Events events) {
+		SimulatedConnection connection;
+		while ((connection = pendingAccepts.poll()) != null) {
+			connection.setReading(true);
+			events.accepted(connection);
+		}
+		SimulatedConnection[] batch;
+		synchronized (ready) {
+			if (ready.isEmpty())
+				return;
+			// events may make connections ready again, those wait for the next poll
+			batch = ready.toArray(new SimulatedConnection[ready.size()]);
+			ready.clear();
+		}
+		for (SimulatedConnection c : batch) {
+			if (c.isWritable())
+				events.writable(c);
+			if (c.isReadable())
+				events.readable(c);
+			update(c);
+		}
+	}
+
+	public void wakeup() {
+		// poll never blocks
+	}
+
+	/**
+	 * Queues the connection for the next poll if it is ready.
+	 */
+	void update(SimulatedConnection connection) {
+		if (connection.isReadable() || connection.isWritable()) {
+			synchronized (ready) {
+				ready.add(connection);
+			}
+		}
+	}
+}
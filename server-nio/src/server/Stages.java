@@ -0,0 +1,134 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The built-in stages of the server's {@link Pipeline}, in the order they are installed.
+ * Stages are looked up by name with {@link Pipeline#get(String)}, e.g. to add a command:
+ *
+ * <pre>
+ * Stages.CommandStage commands = (Stages.CommandStage) server.getPipeline().get("command");
+ * commands.register(":who", message -&gt; { ... });
+ * </pre>
+ */
+public class Stages {
+
+	/**
+	 * Turns the frame payload into text. Heartbeats (empty frames) are consumed here.
+	 */
+	static class DecodeStage implements MessageHandler {
+		private HeartBeatManager heartBeatManager;
+
+		public DecodeStage(HeartBeatManager heartBeatManager) {
+			this.heartBeatManager = heartBeatManager;
+		}
+
+		public boolean handle(Message message) {
+			if (message.length == 0) {
+				// heart beat message
+				heartBeatManager.addHeartBeat(message.sender);
+				return false;
+			}
+			message.text = new String(message.payload, 0, message.length, StandardCharsets.UTF_8);
+			return true;
+		}
+	}
+
+	/**
+	 * Until a client has a username, every message it sends is treated as its chosen username.
+	 */
+	static class SessionStage implements MessageHandler {
+		private Server server;
+
+		public SessionStage(Server server) {
+			this.server = server;
+		}
+
+		public boolean handle(Message message) {
+			if (message.sender.hasUsername())
+				return true;
+			server.checkUsername(message.text, message.sender);
+			return false;
+		}
+	}
+
+	/**
+	 * Runs chat commands. A message is a command only if its whole trimmed text is the command,
+	 * so ":quit now" is sent as normal text. Unknown commands are passed on as normal text too.
+	 */
+	public static class CommandStage implements MessageHandler {
+		private ConcurrentHashMap<String,MessageHandler> commands;
+
+		CommandStage(Server server) {
+			commands = new ConcurrentHashMap<>();
+			register(":quit", message -> {
+				server.sendMessage("-1", message.sender); // send acknowledgement?
+				server.closeClient(message.sender);
+				return false;
+			});
+		}
+
+		/**
+		 * Adds a command. The handler gets the whole message, its return value decides whether
+		 * the message continues down the pipeline.
+		 *
+		 * @param command the whole command text, e.g. ":quit"
+		 */
+		public void register(String command, MessageHandler handler) {
+			commands.put(command, handler);
+		}
+
+		public boolean handle(Message message) {
+			MessageHandler command = commands.get(message.text.trim());
+			return command == null || command.handle(message);
+		}
+	}
+
+	/**
+	 * Place for filters, passes every message on. Filters are added before "route",
+	 * and return false for messages they drop.
+	 */
+	static class FilterStage implements MessageHandler {
+		public boolean handle(Message message) {
+			return true;
+		}
+	}
+
+	/**
+	 * Decides what is sent and to whom. Chat messages go to the whole room, prefixed with the sender.
+	 * Earlier stages, e.g. a command that replies to its sender, can set their own out text with
+	 * {@link Message#setOutText(String)} and {@link Message#setRecipient(String)}, it is kept as is.
+	 * Stages added after this one can change both as well.
+	 */
+	static class RouteStage implements MessageHandler {
+		public boolean handle(Message message) {
+			if (message.outText == null)
+				message.outText = message.sender.getUsername() + ": " + message.text;
+			return true;
+		}
+	}
+
+	/**
+	 * Encodes the outgoing text once and queues the same bytes for every recipient.
+	 */
+	static class EncodeStage implements MessageHandler {
+		private Server server;
+
+		public EncodeStage(Server server) {
+			this.server = server;
+		}
+
+		public boolean handle(Message message) {
+			byte[] bytes = server.encode(message.outText);
+			if (message.recipient == null) {
+				server.broadcast(bytes);
+			} else {
+				Client recipient = server.getUser(message.recipient);
+				if (recipient != null)
+					server.enqueue(bytes, recipient);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package server;
+
+/**
+ * The server's clock, used for heartbeat timeouts and rate limits.
+ * {@link VirtualClock} replaces it in simulations so time only moves when told to.
+ */
+public interface TimeSource {
+
+	/**
+	 * The real clock.
+	 */
+	TimeSource SYSTEM = new TimeSource() {
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+
+		public long nanos() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * @return wall clock time in milliseconds
+	 */
+	long millis();
+
+	/**
+	 * @return time in nanoseconds for measuring intervals, like {@link System#nanoTime()}
+	 */
+	long nanos();
+}
@@ -0,0 +1,260 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * TLS state of one connection, driven from the selector thread without blocking.
+ * Reads and writes go through {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)}
+ * which run the handshake whenever the engine needs it.
+ * <p>
+ * Encrypted and decrypted data is kept in buffers borrowed from shared pools, and only
+ * while there is data in them, so an idle TLS connection holds no buffers.
+ */
+class TlsSession {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SSLEngine engine;
+	private ByteChannel channel;
+	private BufferPool packetPool;
+	private BufferPool appPool;
+
+	/**
+	 * Encrypted bytes read from the channel but not yet unwrapped (write mode).
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Encrypted bytes not yet written to the channel (write mode).
+	 */
+	private ByteBuffer netOut;
+
+	/**
+	 * Decrypted bytes not yet handed to the server (write mode).
+	 */
+	private ByteBuffer appIn;
+
+	private boolean inboundClosed = false;
+
+	/**
+	 * Whether the last read got any bytes from the channel, see {@link #receivedBytes()}.
+	 */
+	private boolean received = false;
+
+	public TlsSession(SSLEngine engine, ByteChannel channel, BufferPool packetPool, BufferPool appPool) {
+		this.engine = engine;
+		this.channel = channel;
+		this.packetPool = packetPool;
+		this.appPool = appPool;
+	}
+
+	/**
+	 * Reads from the channel and decrypts as much as fits into dst.
+	 *
+	 * @return number of plaintext bytes put into dst, -1 if the connection was closed
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		int n = drain(dst);
+		if (netIn == null)
+			netIn = packetPool.acquire();
+		int bytesRead = channel.read(netIn);
+		received = bytesRead > 0;
+		handshake();
+		if (!isHandshaking()) {
+			while (unwrap()) {
+				// unwrap as many records as we have
+			}
+		}
+		n += drain(dst);
+		if (netIn.position() == 0) {
+			packetPool.release(netIn);
+			netIn = null;
+		}
+		if (n == 0 && (bytesRead == -1 || inboundClosed))
+			return -1;
+		return n;
+	}
+
+	/**
+	 * Encrypts src and writes it out. Nothing is consumed while the handshake is still
+	 * running or earlier encrypted data could not be written yet.
+	 *
+	 * @return number of plaintext bytes consumed from src
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if (!flush() || isHandshaking() || !src.hasRemaining())
+			return 0;
+		int consumed = wrap(src);
+		flushNet();
+		return consumed;
+	}
+
+	/**
+	 * Writes out pending encrypted data, and continues the handshake if it was waiting for that.
+	 *
+	 * @return true if nothing is left to write
+	 */
+	public boolean flush() throws IOException {
+		if (!flushNet())
+			return false;
+		handshake();
+		return netOut == null;
+	}
+
+	private boolean flushNet() throws IOException {
+		if (netOut == null)
+			return true;
+		netOut.flip();
+		channel.write(netOut);
+		netOut.compact();
+		if (netOut.position() > 0)
+			return false;
+		packetPool.release(netOut);
+		netOut = null;
+		return true;
+	}
+
+	/**
+	 * @return true if the last {@link #read(ByteBuffer)} got bytes from the peer, even if
+	 * they were all used by the handshake
+	 */
+	public boolean receivedBytes() {
+		return received;
+	}
+
+	/**
+	 * Sends close_notify if the channel takes it right away, and returns the buffers to
+	 * their pools. Does not close the channel.
+	 */
+	public void close() {
+		engine.closeOutbound();
+		try {
+			wrap(EMPTY);
+			flushNet();
+		} catch (IOException e) {
+			// the peer is gone, nothing to tell it
+		}
+		if (netOut != null) {
+			packetPool.release(netOut);
+			netOut = null;
+		}
+		if (netIn != null) {
+			packetPool.release(netIn);
+			netIn = null;
+		}
+		if (appIn != null) {
+			appPool.release(appIn);
+			appIn = null;
+		}
+	}
+
+	/**
+	 * @return true if encrypted data is waiting for the channel to become writable
+	 */
+	public boolean hasPendingWrites() {
+		return netOut != null;
+	}
+
+	/**
+	 * @return true if decrypted data is left over that did not fit in the last read's buffer
+	 */
+	public boolean hasBufferedInput() {
+		return appIn != null;
+	}
+
+	public boolean isHandshaking() {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Advances the handshake as far as possible without blocking.
+	 */
+	private void handshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				// the tasks are short (key exchange), run them right here
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+				break;
+			case NEED_WRAP:
+				if (engine.isOutboundDone())
+					return;
+				wrap(EMPTY);
+				if (!flushNet())
+					return; // wait for OP_WRITE
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				if (!unwrap())
+					return; // wait for more data from the peer
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the engine consumed or produced anything
+	 */
+	private boolean unwrap() throws IOException {
+		if (inboundClosed || netIn == null)
+			return false;
+		if (appIn == null)
+			appIn = appPool.acquire();
+		netIn.flip();
+		SSLEngineResult result = engine.unwrap(netIn, appIn);
+		netIn.compact();
+		if (appIn.position() == 0) {
+			appPool.release(appIn);
+			appIn = null;
+		}
+		switch (result.getStatus()) {
+		case CLOSED:
+			inboundClosed = true;
+			return false;
+		case BUFFER_UNDERFLOW: // partial record, wait for the rest
+		case BUFFER_OVERFLOW: // appIn is full, has to be drained first
+			return false;
+		default:
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		}
+	}
+
+	private int wrap(ByteBuffer src) throws IOException {
+		if (netOut == null)
+			netOut = packetPool.acquire();
+		SSLEngineResult result = engine.wrap(src, netOut);
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+			return 0; // netOut is full, flush it first
+		return result.bytesConsumed();
+	}
+
+	/**
+	 * Moves decrypted bytes from appIn to dst.
+	 */
+	private int drain(ByteBuffer dst) {
+		if (appIn == null)
+			return 0;
+		appIn.flip();
+		int n = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		if (appIn.position() == 0) {
+			appPool.release(appIn);
+			appIn = null;
+		}
+		return n;
+	}
+}
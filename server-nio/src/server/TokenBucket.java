@@ -0,0 +1,23 @@
+package server;
+
+/**
+ * State of one token bucket. Rate and capacity come from the {@link RateLimit}, so the
+ * bucket itself is just two fields and refilling it does not allocate.
+ */
+class TokenBucket {
+	double tokens;
+	long lastRefill;
+
+	public TokenBucket(double tokens, long now) {
+		this.tokens = tokens;
+		this.lastRefill = now;
+	}
+
+	public void refill(double perNano, double capacity, long now) {
+		long elapsed = now - lastRefill;
+		if (elapsed > 0) {
+			tokens = Math.min(capacity, tokens + elapsed * perNano);
+			lastRefill = now;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Where the server's connections come from. {@link NioTransport} uses real sockets and a
+ * {@link java.nio.channels.Selector}, {@link SimulatedTransport} keeps everything in memory
+ * so that large numbers of clients can be run deterministically on one thread.
+ */
+public interface Transport {
+
+	/**
+	 * Called back by {@link Transport#poll(long, Events)} for every ready connection.
+	 */
+	interface Events {
+		/**
+		 * A new connection was accepted, it is already watched for reading.
+		 */
+		void accepted(Connection connection);
+
+		/**
+		 * The connection watches for writing and can take more bytes.
+		 */
+		void writable(Connection connection);
+
+		/**
+		 * The connection watches for reading and has bytes (or the end of the stream) to read.
+		 */
+		void readable(Connection connection);
+	}
+
+	/**
+	 * Starts accepting connections.
+	 */
+	void open() throws IOException;
+
+	/**
+	 * Waits for ready connections and reports them, writable before readable for each connection.
+	 *
+	 * @param timeout longest time to wait in milliseconds, 0 to wait until something is ready.
+	 * Transports that cannot block return right away.
+	 */
+	void poll(long timeout, Events events) throws IOException;
+
+	/**
+	 * Makes a running {@link #poll(long, Events)} return early, e.g. after another thread
+	 * asked a connection to watch for writing. Does nothing if the transport is not open yet.
+	 */
+	void wakeup();
+}
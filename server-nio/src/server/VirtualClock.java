@@ -0,0 +1,36 @@
+package server;
+
+/**
+ * A clock that only moves when {@link #advance(long)} is called, for deterministic simulations.
+ */
+public class VirtualClock implements TimeSource {
+	private volatile long nanos;
+
+	public VirtualClock() {
+		this(0);
+	}
+
+	/**
+	 * @param startMillis initial time in milliseconds
+	 */
+	public VirtualClock(long startMillis) {
+		nanos = startMillis * 1000000;
+	}
+
+	/**
+	 * Moves the clock forward. Only the thread driving the simulation should call this.
+	 */
+	public void advance(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Time cannot go backwards");
+		nanos += millis * 1000000;
+	}
+
+	public long millis() {
+		return nanos / 1000000;
+	}
+
+	public long nanos() {
+		return nanos;
+	}
+}
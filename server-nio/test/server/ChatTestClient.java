@@ -0,0 +1,143 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A blocking chat client for checks and benchmarks, speaking the same frame format as the
+ * real client: timestamp (long), message length (int) and the UTF-8 message.
+ */
+class ChatTestClient implements Closeable {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private long counter = 1;
+	private volatile boolean closed = false;
+
+	private ChatTestClient(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(10000);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Connects to a server on localhost, retrying for a few seconds while it starts up.
+	 *
+	 * @param sslContext context trusting the server's certificate, or null for plaintext
+	 */
+	static ChatTestClient connect(int port, SSLContext sslContext) throws IOException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				Socket socket;
+				if (sslContext != null) {
+					SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+					sslSocket.connect(new InetSocketAddress("localhost", port));
+					sslSocket.startHandshake();
+					socket = sslSocket;
+				} else {
+					socket = new Socket();
+					socket.connect(new InetSocketAddress("localhost", port));
+				}
+				return new ChatTestClient(socket);
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a TCP port that was free a moment ago
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	synchronized void send(String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		out.writeLong(counter++);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.flush();
+	}
+
+	synchronized void sendHeartBeat() throws IOException {
+		out.writeLong(counter);
+		out.writeInt(0); // length of message is 0 for heartbeats
+		out.flush();
+	}
+
+	/**
+	 * Sends a heartbeat every 200 ms from a daemon thread, like the real client, until closed.
+	 */
+	void startHeartBeats() {
+		Thread thread = new Thread(() -> {
+			try {
+				while (!closed) {
+					sendHeartBeat();
+					Thread.sleep(200);
+				}
+			} catch (IOException | InterruptedException e) {
+				// connection closed
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Blocks until the next message arrives.
+	 */
+	String receive() throws IOException {
+		in.readLong(); // server timestamp
+		int length = in.readInt();
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Receives messages until one starts with prefix.
+	 *
+	 * @return the matching message
+	 * @throws IOException if the connection ends or nothing matches for 10 seconds
+	 */
+	String receiveUntil(String prefix) throws IOException {
+		while (true) {
+			String message = receive();
+			if (message.startsWith(prefix))
+				return message;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+	}
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the server heap used per idle connection, which should stay below 1 KB.
+ * <ul>
+ * <li>sim [N]: N logged in users on the {@link SimulatedTransport}, default 100000. Counts the
+ * server's own state per user (client, username, rate limit buckets and the entries pointing
+ * at them), without any JDK socket objects.</li>
+ * <li>tcp [N]: N idle loopback connections to a real server in a child JVM, default 9000. Counts
+ * everything the server holds per connection, including the JDK's SocketChannel and SelectionKey.
+ * The server loop is driven with {@link Server#step()} without heartbeat timeouts, so the
+ * connections stay open without sending anything. N is limited by the open file limit, both
+ * processes need N descriptors.</li>
+ * </ul>
+ * Prints PASS or FAIL with the bytes per connection, and exits with status 1 on FAIL.
+ * <p>
+ * Run with: java -Xmx2g -cp bin server.IdleMemory sim 100000
+ */
+public class IdleMemory {
+	private static final long limit = 1024;
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "sim";
+		long perConnection;
+		int connections;
+		if (mode.equals("serve")) {
+			serve(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		try {
+			if (mode.equals("tcp")) {
+				connections = args.length > 1 ? Integer.parseInt(args[1]) : 9000;
+				perConnection = measureTcp(connections);
+			} else {
+				connections = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+				perConnection = measureSimulated(connections);
+			}
+		} catch (Exception e) {
+			System.out.println("FAIL " + e);
+			System.exit(1);
+			return;
+		}
+		boolean pass = perConnection < limit;
+		System.out.printf("%s %s: %d bytes of server heap per idle connection at %d connections%n",
+				pass ? "PASS" : "FAIL", mode, perConnection, connections);
+		System.exit(pass ? 0 : 1);
+	}
+
+	private static long measureSimulated(int count) throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = new Server(transport, clock);
+		server.setLogging(false);
+		server.open();
+		List<SimulatedConnection> connections = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			connections.add(transport.connect());
+		long before = usedHeap();
+
+		server.step();
+		for (int i = 0; i < count; i++)
+			connections.get(i).sendFrame(1, "user" + i);
+		for (int i = 0; i < 3; i++)
+			server.step();
+		clock.advance(1000); // send the presence digest, so nothing is left queued
+		for (int i = 0; i < 2; i++)
+			server.step();
+		for (SimulatedConnection connection : connections)
+			connection.receive();
+		if (server.connections.size() != count)
+			throw new IllegalStateException("only " + server.connections.size() + " users logged in");
+		long after = usedHeap();
+		return (after - before) / count;
+	}
+
+	private static long measureTcp(int count) throws Exception {
+		int port = ChatTestClient.freePort();
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				IdleMemory.class.getName(), "serve", String.valueOf(port), String.valueOf(count))
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		try {
+			BufferedReader out = new BufferedReader(new InputStreamReader(server.getInputStream()));
+			waitFor(out, "READY");
+			List<SocketChannel> channels = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				channels.add(SocketChannel.open(new InetSocketAddress("localhost", port)));
+			String result = waitFor(out, "RESULT");
+			if (result.startsWith("RESULT FAILED"))
+				throw new IllegalStateException(result.substring("RESULT FAILED ".length()));
+			return Long.parseLong(result.substring("RESULT ".length()));
+		} finally {
+			server.destroy();
+		}
+	}
+
+	private static String waitFor(BufferedReader out, String prefix) throws IOException {
+		String line;
+		while ((line = out.readLine()) != null) {
+			if (line.startsWith(prefix))
+				return line;
+		}
+		throw new IOException("Server process ended before " + prefix);
+	}
+
+	/**
+	 * Child process of the tcp mode: runs the server and reports its heap once count
+	 * connections have been open for a while.
+	 */
+	private static void serve(int port, int count) throws Exception {
+		Server server = new Server(port);
+		server.setLogging(false);
+		server.open();
+		Thread serverThread = new Thread(() -> {
+			try {
+				while (true)
+					server.step();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+		long before = usedHeap();
+		System.out.println("READY");
+		long deadline = System.currentTimeMillis() + 60000;
+		while (server.connections.size() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(100);
+		Thread.sleep(1000); // let the server send every username prompt
+		if (server.connections.size() < count) {
+			System.out.println("RESULT FAILED only " + server.connections.size() + " of " + count
+					+ " connections accepted, the file limit may be too low");
+		} else {
+			long after = usedHeap();
+			System.out.println("RESULT " + (after - before) / count);
+		}
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,355 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deterministic scenarios on the {@link SimulatedTransport} with a {@link VirtualClock}: heartbeat
+ * timeouts and fan-out at 100k clients, backpressure from a slow consumer, rate limit pauses,
+ * presence digests and pipeline worker stages. Except for the worker stages, everything runs on
+ * the calling thread, so every run gives the same result.
+ * Prints PASS with the wall time of each scenario, or the failure and exits with status 1.
+ * <p>
+ * Run with: java -Xmx2g -cp bin server.SimulationScenarios [clients], default 100000 clients.
+ */
+public class SimulationScenarios {
+
+	private static int clients = 100000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0)
+			clients = Integer.parseInt(args[0]);
+		try {
+			run("heartbeat timeouts, " + clients + " clients", SimulationScenarios::timeouts);
+			run("fan-out with 5 byte reads, " + clients + " clients", SimulationScenarios::fanOut);
+			run("backpressure from a slow consumer", SimulationScenarios::backpressure);
+			run("rate limit pause keeps heartbeating clients", SimulationScenarios::pausedHeartBeats);
+			run("presence digest during a join storm", SimulationScenarios::presenceStorm);
+			run("worker stage keeps each user's messages in order", SimulationScenarios::workerOrder);
+			run("full worker pauses its connections", SimulationScenarios::workerBackpressure);
+		} catch (Exception e) {
+			System.out.println("FAIL " + e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private interface Scenario {
+		void run() throws Exception;
+	}
+
+	private static void run(String name, Scenario scenario) throws Exception {
+		long start = System.nanoTime();
+		scenario.run();
+		System.out.printf("PASS %s (%.2f s)%n", name, (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Half of the clients send heartbeats, the other half are closed after the timeout.
+	 */
+	private static void timeouts() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = newServer(transport, clock);
+		List<SimulatedConnection> connections = connect(transport, clients);
+		server.step();
+		for (SimulatedConnection connection : connections)
+			check(connection.receive().size() == 1, "every client gets the username prompt");
+
+		clock.advance(500);
+		for (int i = 0; i < clients; i += 2)
+			connections.get(i).sendHeartBeat(1);
+		server.step();
+		clock.advance(500);
+		server.checkHeartBeats();
+
+		int closed = 0;
+		for (int i = 0; i < clients; i++) {
+			boolean shouldClose = i % 2 == 1;
+			check(connections.get(i).isClosed() == shouldClose, "client " + i + " closed: " + !shouldClose);
+			if (shouldClose)
+				closed++;
+		}
+		check(server.connections.size() == clients - closed, "server keeps " + (clients - closed) + " connections");
+	}
+
+	/**
+	 * Every client logs in with reads of at most 5 bytes, so every frame arrives in pieces,
+	 * then one message reaches all of them.
+	 */
+	private static void fanOut() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		transport.setReadChunk(5);
+		Server server = newServer(transport, clock);
+		List<SimulatedConnection> connections = connect(transport, clients);
+		server.step();
+		for (int i = 0; i < clients; i++)
+			connections.get(i).sendFrame(1, "user" + i);
+		settle(server, 10);
+		clock.advance(1000);
+		settle(server, 2); // queue and write the presence digest
+		for (SimulatedConnection connection : connections)
+			connection.receive();
+
+		connections.get(0).sendFrame(2, "hello everyone");
+		settle(server, 10);
+		for (int i = 0; i < clients; i++) {
+			List<String> received = connections.get(i).receive();
+			check(received.size() == 1 && received.get(0).equals("user0: hello everyone"),
+					"client " + i + " got " + received);
+		}
+	}
+
+	/**
+	 * A client that stops reading fills its window, the rest of its messages wait on the server
+	 * without holding up the other clients, and all arrive in order once it reads again.
+	 */
+	private static void backpressure() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		transport.setWindow(256);
+		Server server = newServer(transport, clock);
+		server.setRateLimit(null);
+		List<SimulatedConnection> connections = connect(transport, 3);
+		SimulatedConnection sender = connections.get(0), fast = connections.get(1), slow = connections.get(2);
+		server.step();
+		sender.sendFrame(1, "sender");
+		fast.sendFrame(1, "fast");
+		slow.sendFrame(1, "slow");
+		settle(server, 3);
+		for (SimulatedConnection connection : connections)
+			connection.receive();
+
+		int messages = 200;
+		List<String> fastReceived = new ArrayList<>();
+		for (int i = 0; i < messages; i++) {
+			sender.sendFrame(2, "message " + i);
+			settle(server, 2);
+			fastReceived.addAll(fromSender(fast.receive()));
+			sender.receive();
+		}
+		check(fastReceived.size() == messages, "fast client got all " + messages + " messages");
+		check(slow.pendingBytes() == 256, "slow client's window is full");
+		Client slowClient = (Client) slow.attachment();
+		int queued = slowClient.outbox == null ? 0 : slowClient.outbox.size();
+		check(queued > messages / 2, "server queues the slow client's messages, " + queued + " queued");
+
+		List<String> slowReceived = new ArrayList<>();
+		for (int i = 0; i < 1000 && slowReceived.size() < messages; i++) {
+			slowReceived.addAll(fromSender(slow.receive(100)));
+			server.step();
+		}
+		for (int i = 0; i < messages; i++)
+			check(slowReceived.get(i).equals("sender: message " + i), "slow client got message " + i + " in order");
+		check(slowClient.outbox == null, "server dropped the slow client's queue once drained");
+	}
+
+	/**
+	 * A rate limit of one message per second pauses the client for most of the time,
+	 * it must not be closed for missing heartbeats meanwhile.
+	 */
+	private static void pausedHeartBeats() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = newServer(transport, clock);
+		server.setRateLimit(new RateLimit(1, 1, 100000, 100000, RateLimit.Action.PAUSE));
+		SimulatedConnection client = transport.connect();
+		server.step();
+		client.sendFrame(1, "pat");
+		server.step();
+		int delivered = 0;
+		for (int ms = 0; ms < 10000; ms += 100) {
+			client.sendHeartBeat(2);
+			if (ms % 200 == 0)
+				client.sendFrame(2, "message " + ms);
+			server.step();
+			server.checkHeartBeats();
+			clock.advance(100);
+			for (String message : client.receive()) {
+				if (message.startsWith("pat: message"))
+					delivered++;
+			}
+		}
+		check(!client.isClosed(), "paused client stays connected");
+		check(delivered >= 8 && delivered <= 11, "about one message per second delivered, got " + delivered);
+	}
+
+	/**
+	 * 10000 users join at once. Without digests every user would get a notice per join,
+	 * with them only the first 100 users see single notices and everyone gets one digest.
+	 */
+	private static void presenceStorm() throws Exception {
+		int users = 10000;
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = newServer(transport, clock);
+		List<SimulatedConnection> connections = connect(transport, users);
+		server.step();
+		for (int i = 0; i < users; i++)
+			connections.get(i).sendFrame(1, "user" + i);
+		settle(server, 3);
+		clock.advance(1000);
+		settle(server, 2);
+
+		long frames = 0;
+		for (SimulatedConnection connection : connections)
+			frames += connection.receive().size();
+		// prompt, welcome and digest for everyone, plus about 100 * 100 / 2 single notices
+		check(frames < users * 5L, "presence traffic is linear, " + frames + " frames");
+		List<String> last = connections.get(users - 1).receive();
+		check(last.isEmpty(), "nothing left to receive");
+		connections.get(0).sendFrame(2, "still here");
+		settle(server, 2);
+		check(connections.get(users - 1).receive().contains("user0: still here"), "room works after the storm");
+	}
+
+	/**
+	 * With a worker stage after "command", a user's messages wait for the worker while
+	 * ":quit" would be handled on the selector thread, the room must still see them first.
+	 */
+	private static void workerOrder() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = newServer(transport, clock);
+		server.setRateLimit(null);
+		server.getPipeline().addAfter("command", "slow", new MessageHandler() {
+			public boolean handle(Message message) {
+				sleep(1);
+				return true;
+			}
+
+			public boolean runsOnWorker() {
+				return true;
+			}
+		});
+		SimulatedConnection sender = transport.connect(), observer = transport.connect();
+		server.step();
+		sender.sendFrame(1, "sender");
+		observer.sendFrame(1, "observer");
+		settle(server, 3);
+		observer.receive();
+
+		int messages = 50;
+		for (int i = 0; i < messages; i++)
+			sender.sendFrame(2, "message " + i);
+		sender.sendFrame(2, ":quit");
+		List<String> received = new ArrayList<>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!received.contains("sender has left the chat!") && System.currentTimeMillis() < deadline) {
+			server.step();
+			received.addAll(observer.receive());
+			sleep(1);
+		}
+		check(received.size() == messages + 1, "observer got " + received.size() + " messages");
+		for (int i = 0; i < messages; i++)
+			check(received.get(i).equals("sender: message " + i), "message " + i + " before the next, got " + received.get(i));
+		check(received.get(messages).equals("sender has left the chat!"), "leave notice comes last");
+	}
+
+	/**
+	 * A worker stage that is stuck takes a limited number of messages, then the server stops
+	 * reading from the sender, keeps it alive and delivers everything once the worker recovers.
+	 */
+	private static void workerBackpressure() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		SimulatedTransport transport = new SimulatedTransport();
+		Server server = newServer(transport, clock);
+		server.setRateLimit(null);
+		CountDownLatch stuck = new CountDownLatch(1);
+		AtomicInteger taken = new AtomicInteger();
+		SimulatedConnection sender = transport.connect(), observer = transport.connect();
+		server.step();
+		sender.sendFrame(1, "sender");
+		observer.sendFrame(1, "observer");
+		settle(server, 3);
+		observer.receive();
+		server.getPipeline().addBefore("route", "stuck", new MessageHandler() {
+			public boolean handle(Message message) {
+				taken.incrementAndGet();
+				try {
+					stuck.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+
+			public boolean runsOnWorker() {
+				return true;
+			}
+		});
+
+		int messages = 500;
+		for (int i = 0; i < messages; i++)
+			sender.sendFrame(2, "message " + i);
+		settle(server, 20);
+		for (int i = 0; i < 1000 && taken.get() == 0; i++)
+			sleep(1); // let the worker thread pick up the first message
+		check(!sender.isReading(), "server stopped reading from the sender");
+		clock.advance(2000);
+		observer.sendHeartBeat(3);
+		settle(server, 1);
+		server.checkHeartBeats();
+		check(!sender.isClosed(), "paused sender stays connected");
+		check(taken.get() == 1, "worker is stuck on the first message, took " + taken.get());
+
+		stuck.countDown();
+		List<String> received = new ArrayList<>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received.size() < messages && System.currentTimeMillis() < deadline) {
+			server.step();
+			received.addAll(fromSender(observer.receive()));
+			sleep(1);
+		}
+		check(received.size() == messages, "observer got " + received.size() + " of " + messages);
+		for (int i = 0; i < messages; i++)
+			check(received.get(i).equals("sender: message " + i), "message " + i + " in order");
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the chat messages of the user called sender, without join notices
+	 */
+	private static List<String> fromSender(List<String> received) {
+		List<String> messages = new ArrayList<>();
+		for (String message : received) {
+			if (message.startsWith("sender: "))
+				messages.add(message);
+		}
+		return messages;
+	}
+
+	private static Server newServer(SimulatedTransport transport, VirtualClock clock) throws Exception {
+		Server server = new Server(transport, clock);
+		server.setLogging(false);
+		server.open();
+		return server;
+	}
+
+	private static List<SimulatedConnection> connect(SimulatedTransport transport, int count) {
+		List<SimulatedConnection> connections = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			connections.add(transport.connect());
+		return connections;
+	}
+
+	private static void settle(Server server, int steps) throws Exception {
+		for (int i = 0; i < steps; i++)
+			server.step();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Creates a self-signed key store for localhost with the JDK's keytool, the same way as
+ * described in the README, and an {@link SSLContext} that uses it for both the server key
+ * and the trusted certificate.
+ */
+class TestKeys {
+	static final String password = "changeit";
+
+	/**
+	 * Generates chat-ks.p12 in a new temporary directory.
+	 *
+	 * @return context holding the generated key, which also trusts its own certificate
+	 */
+	static SSLContext createContext() throws IOException, GeneralSecurityException, InterruptedException {
+		Path dir = Files.createTempDirectory("chat-tls");
+		Path keyStorePath = dir.resolve("chat-ks.p12");
+		Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+		Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "chat",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+				"-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+				"-keystore", keyStorePath.toString(), "-storepass", password)
+				.inheritIO().start();
+		if (process.waitFor() != 0)
+			throw new IOException("keytool failed with exit code " + process.exitValue());
+		keyStorePath.toFile().deleteOnExit();
+		dir.toFile().deleteOnExit();
+
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = Files.newInputStream(keyStorePath)) {
+			keyStore.load(in, password.toCharArray());
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password.toCharArray());
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+		return context;
+	}
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Measures the cost of TLS: one sender broadcasts messages to a room of receivers, once in
+ * plaintext and once over TLS, against the same server code. The server loop is driven with
+ * {@link Server#step()} on its own thread, without the sleep of {@link Server#start()} and without
+ * heartbeat timeouts, so the numbers show reading, framing, encryption and writing only.
+ * Each mode is run twice and the second run is reported, the first one warms up the JVM.
+ * Clients run in the same JVM, so their decryption counts against the TLS numbers as well.
+ * <p>
+ * Run with: java -cp bin server.TlsBenchmark [receivers] [messages], defaults are 20 and 2000.
+ */
+public class TlsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		SSLContext context = TestKeys.createContext();
+
+		double plain = 0, tls = 0;
+		for (int run = 0; run < 2; run++) {
+			plain = run(null, receivers, messages);
+			tls = run(context, receivers, messages);
+		}
+		System.out.printf("plaintext: %.0f deliveries/s%n", plain);
+		System.out.printf("TLS:       %.0f deliveries/s%n", tls);
+		System.out.printf("TLS throughput is %.0f%% of plaintext (%d receivers, %d messages, %d CPUs)%n",
+				100 * tls / plain, receivers, messages, Runtime.getRuntime().availableProcessors());
+		System.exit(0);
+	}
+
+	/**
+	 * @return messages delivered per second, summed over all receivers
+	 */
+	private static double run(SSLContext context, int receivers, int messages) throws Exception {
+		int port = ChatTestClient.freePort();
+		Server server = new Server(port);
+		server.setLogging(false);
+		server.setRateLimit(null);
+		if (context != null)
+			server.enableTls(context);
+		server.open();
+		Thread serverThread = new Thread(() -> {
+			try {
+				while (true)
+					server.step();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		List<ChatTestClient> clients = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(receivers);
+		for (int i = 0; i < receivers; i++) {
+			ChatTestClient receiver = ChatTestClient.connect(port, context);
+			clients.add(receiver);
+			receiver.receiveUntil("Choose a unique username");
+			receiver.send("receiver" + i);
+			receiver.receiveUntil("receiver" + i + " has joined");
+		}
+		ChatTestClient sender = ChatTestClient.connect(port, context);
+		clients.add(sender);
+		sender.receiveUntil("Choose a unique username");
+		sender.send("sender");
+		for (int i = 0; i < receivers; i++) {
+			ChatTestClient receiver = clients.get(i);
+			receiver.receiveUntil("sender has joined");
+			Thread thread = new Thread(() -> {
+				try {
+					int count = 0;
+					while (count < messages) {
+						if (receiver.receive().startsWith("sender: "))
+							count++;
+					}
+					done.countDown();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+			sender.send("message number " + i);
+		if (!done.await(120, TimeUnit.SECONDS))
+			throw new IllegalStateException("Receivers did not get all messages, " + done.getCount() + " missing");
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (ChatTestClient client : clients)
+			client.close();
+		return receivers * (double) messages / seconds;
+	}
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * End to end check of TLS: generates a self-signed key store, starts a TLS server on a free port
+ * and lets two TLS clients log in and chat. Also checks that connections closed or broken before
+ * their handshake finishes are dropped. Prints PASS or the failure and exits with status 1.
+ * <p>
+ * Run with: java -cp bin server.TlsCheck
+ */
+public class TlsCheck {
+
+	public static void main(String[] args) throws Exception {
+		SSLContext context = TestKeys.createContext();
+		int port = ChatTestClient.freePort();
+		Server server = new Server(port);
+		server.setLogging(false);
+		server.enableTls(context);
+		server.setPresenceDigest(new PresenceDigest(100, 1000)); // configured before start, as documented
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.start();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		try (ChatTestClient alice = ChatTestClient.connect(port, context);
+				ChatTestClient bob = ChatTestClient.connect(port, context)) {
+			alice.startHeartBeats();
+			bob.startHeartBeats();
+			String protocol = ((SSLSocket) alice.getSocket()).getSession().getProtocol();
+
+			alice.receiveUntil("Choose a unique username");
+			alice.send("alice");
+			alice.receiveUntil("alice has joined the chat!");
+			bob.receiveUntil("Choose a unique username");
+			bob.send("bob");
+			alice.receiveUntil("bob has joined the chat!");
+
+			bob.send("hello over tls");
+			String received = alice.receiveUntil("bob: ");
+			check(received.equals("bob: hello over tls"), "alice got \"" + received + "\"");
+			alice.send("hi bob");
+			received = bob.receiveUntil("alice: ");
+			check(received.equals("alice: hi bob"), "bob got \"" + received + "\"");
+			System.out.println("PASS TLS handshake (" + protocol + ") and chat round trip");
+
+			try (Socket silent = new Socket("localhost", port)) {
+				silent.shutdownOutput(); // the server reads end of stream, its writes still succeed
+				waitForClose(silent);
+			}
+			try (Socket plain = new Socket("localhost", port)) {
+				plain.getOutputStream().write("not a TLS record".getBytes());
+				waitForClose(plain);
+			}
+			check(server.connections.size() == 2, "server has " + server.connections.size() + " connections");
+			System.out.println("PASS connections closed or broken during the handshake are dropped");
+		} catch (Exception e) {
+			System.out.println("FAIL " + e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Reads until the server closes the connection, which must happen well before
+	 * heartbeats would time out.
+	 */
+	private static void waitForClose(Socket socket) throws IOException {
+		socket.setSoTimeout(2000);
+		try {
+			InputStream in = socket.getInputStream();
+			while (in.read() != -1) {
+				// the server may send an alert before closing
+			}
+		} catch (SocketTimeoutException e) {
+			throw new IllegalStateException("server kept a connection open that ended during the handshake");
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalStateException(message);
+	}
+}